@@ -61,7 +61,10 @@ public class AllPagesTaskGenerator extends BaseTaskGenerator
          for (int i=0; i < rows.size(); i++)
          {
             Element row = rows.get(i);
-            tasks.add(new IndexTask(row.getAttributeValue("page_id"), row.getAttributeValue("page_id"), IndexTask.ACTION_UPDATE, 0, null));
+            // rev_id lets pages that haven't changed since they were last indexed be skipped without fetching them
+            String revId = row.getAttributeValue("rev_id");
+            tasks.add(new IndexTask(row.getAttributeValue("page_id"), row.getAttributeValue("page_id"), IndexTask.ACTION_UPDATE,
+                                    Utils.isEmpty(revId) ? 0 : Integer.parseInt(revId), null));
          }
 
          // are we at the end? if rolling over, start over
@@ -90,4 +93,8 @@ public class AllPagesTaskGenerator extends BaseTaskGenerator
    public boolean isAtEnd() {
       return atEnd;
    }
+
+   public boolean skipsUnchangedPages() {
+      return true;
+   }
 }
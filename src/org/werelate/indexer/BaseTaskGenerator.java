@@ -5,8 +5,11 @@ import org.werelate.util.HttpClientHelper;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.logging.Logger;
 import java.net.URLEncoder;
 
@@ -23,6 +26,38 @@ public abstract class BaseTaskGenerator
    public abstract List<IndexTask> getTasks(CheckpointManager cm, int max) throws SQLException, IOException, ParsingException;
    public abstract void updateCheckpoint(IndexTask it, CheckpointManager cm);
 
+   /**
+    * Returns true if pages from this generator can be skipped when their revision is already in the index.
+    * Generators that ask for pages to be re-indexed for other reasons (moves, undeletes, index requests) return false.
+    */
+   public boolean skipsUnchangedPages() {
+      return false;
+   }
+
+   /**
+    * Returns when the change behind the task happened on the wiki, or 0 if the generator doesn't know
+    */
+   public long getEventMillis(IndexTask it) {
+      return 0;
+   }
+
+   /**
+    * Parse a wiki timestamp (yyyyMMddHHmmss in UTC); returns 0 if it can't be parsed
+    */
+   protected static long parseWikiTimestamp(String timestamp) {
+      if (timestamp == null) {
+         return 0;
+      }
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      try {
+         return format.parse(timestamp).getTime();
+      }
+      catch (ParseException e) {
+         return 0;
+      }
+   }
+
    protected HttpClientHelper client;
    protected String hostname;
 
@@ -0,0 +1,122 @@
+package org.werelate.indexer;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Builds a complete index in-process, using the same schema.xml and solrconfig.xml as the search server,
+ * into a data directory of its own. Documents go straight to the index writer instead of over http as xml,
+ * and the serving solr isn't touched until the finished index is installed.
+ *
+ * The core is opened with a large ram buffer and a high merge factor, so segments are merged once,
+ * by the optimize in finish().
+ */
+public class BulkIndexBuilder
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+   private static final String CORE_NAME = "bulk";
+
+   private CoreContainer container;
+   private SolrServer solr;
+   private String indexDir;
+
+   /**
+    * @param solrHome directory containing conf/solrconfig.xml and conf/schema.xml
+    * @param dataDir directory to build the index in; it should be empty and on the same filesystem as the live index
+    */
+   public BulkIndexBuilder(String solrHome, String dataDir, int ramBufferSizeMB, int mergeFactor) {
+      Properties coreProperties = new Properties();
+      coreProperties.setProperty("solr.mainIndex.ramBufferSizeMB", Integer.toString(ramBufferSizeMB));
+      coreProperties.setProperty("solr.mainIndex.mergeFactor", Integer.toString(mergeFactor));
+
+      logger.info("Opening bulk index core solrHome=" + solrHome + " dataDir=" + dataDir);
+      try {
+         container = new CoreContainer(new SolrResourceLoader(solrHome));
+         CoreDescriptor cd = new CoreDescriptor(container, CORE_NAME, solrHome);
+         cd.setDataDir(new File(dataDir).getAbsolutePath());
+         cd.setCoreProperties(coreProperties);
+         SolrCore core = container.create(cd);
+         container.register(CORE_NAME, core, false);
+      }
+      catch (Exception e) {
+         throw new RuntimeException("Unable to open solr core in " + solrHome + ": " + e, e);
+      }
+      solr = new EmbeddedSolrServer(container, CORE_NAME);
+   }
+
+   public SolrServer getSolrServer() {
+      return solr;
+   }
+
+   /**
+    * Merge the committed index down to a single segment and close the core
+    */
+   public void finish() throws IOException, SolrServerException {
+      logger.info("Optimizing bulk index");
+      solr.optimize();
+      SolrCore core = container.getCore(CORE_NAME);
+      try {
+         indexDir = core.getNewIndexDir();
+      }
+      finally {
+         core.close();
+      }
+      close();
+      logger.info("Bulk index built in " + indexDir);
+   }
+
+   /**
+    * Move the finished index into the live data directory and point the live core at it.
+    * The index directory is moved under a new name and index.properties is replaced by a rename,
+    * so the live core sees either the old index or the new one; it switches when the core is next reloaded.
+    * The old index directory is left in place to be removed after the switch.
+    */
+   public File install(String liveDataDir) throws IOException {
+      if (indexDir == null) {
+         throw new RuntimeException("Bulk index has not been finished");
+      }
+      String indexName = "index." + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+      File target = new File(liveDataDir, indexName);
+      if (!new File(indexDir).renameTo(target)) {
+         throw new RuntimeException("Unable to move " + indexDir + " to " + target + "; are they on the same filesystem?");
+      }
+
+      Properties p = new Properties();
+      p.setProperty("index", indexName);
+      File tmp = new File(liveDataDir, "index.properties.tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+         p.store(out, "installed by the indexer bulk build");
+      }
+      finally {
+         out.close();
+      }
+      File props = new File(liveDataDir, "index.properties");
+      if (!tmp.renameTo(props)) {
+         throw new RuntimeException("Unable to rename " + tmp + " to " + props);
+      }
+      logger.info("Installed bulk index as " + target + "; reload the solr core to start using it");
+      return target;
+   }
+
+   public void close() {
+      if (container != null) {
+         container.shutdown();
+         container = null;
+      }
+   }
+}
@@ -0,0 +1,49 @@
+package org.werelate.indexer;
+
+/**
+ * Hits and misses for a cache the indexer looks things up in
+ */
+public class CacheMetrics implements CacheMetricsMBean
+{
+   private String name;
+   private long hits;
+   private long misses;
+
+   CacheMetrics(String name) {
+      this.name = name;
+      reset();
+   }
+
+   public synchronized void hit() {
+      hits++;
+   }
+
+   public synchronized void miss() {
+      misses++;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   public synchronized double getHitRate() {
+      return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+   }
+
+   public synchronized void reset() {
+      hits = 0;
+      misses = 0;
+   }
+
+   public synchronized String toString() {
+      return String.format("%s: hits=%d misses=%d hit rate=%.1f%%", name, hits, misses, getHitRate() * 100);
+   }
+}
@@ -0,0 +1,13 @@
+package org.werelate.indexer;
+
+/**
+ * What JMX shows for each cache the indexer looks things up in
+ */
+public interface CacheMetricsMBean
+{
+   public String getName();
+   public long getHits();
+   public long getMisses();
+   public double getHitRate();
+   public void reset();
+}
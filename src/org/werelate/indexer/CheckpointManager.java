@@ -15,57 +15,168 @@ public class CheckpointManager
    private String checkpoint;
    private String revTimestamp;
    private boolean changed;
-   private PreparedStatement psRead;
-   private PreparedStatement psUpdate;
+   private String savedCheckpoint;
+   private String savedRevTimestamp;
+   private DatabaseConnectionHelper conn;
+   private FreshnessTracker freshnessTracker;
 
    public CheckpointManager(DatabaseConnectionHelper conn, String name) throws SQLException
    {
       changed = false;
       this.name = name;
-      this.psRead = conn.preparedStatement("SELECT ic_checkpoint, ic_rev_timestamp FROM index_checkpoint WHERE ic_name = ?");
-      this.psUpdate = conn.preparedStatement("UPDATE index_checkpoint SET ic_checkpoint = ?, ic_rev_timestamp = ? WHERE ic_name = ?");
+      this.conn = conn;
       this.checkpoint = null;
       this.revTimestamp = null;
    }
 
-   public String getCheckpoint() throws SQLException
+   private CheckpointManager(String name, String checkpoint, String revTimestamp)
+   {
+      changed = false;
+      this.name = name;
+      this.conn = null;
+      this.checkpoint = checkpoint;
+      this.revTimestamp = revTimestamp;
+   }
+
+   /**
+    * A copy of the current checkpoint that a task generator can read and move on from without affecting this one.
+    * The copy can't be saved.
+    */
+   public synchronized CheckpointManager lookAhead() throws SQLException
+   {
+      return new CheckpointManager(name, getCheckpoint(), revTimestamp);
+   }
+
+   /**
+    * The checkpoint as of some point in time, to be saved once everything indexed up to that point has been committed
+    */
+   public static class Snapshot {
+      private CheckpointManager cm;
+      private String checkpoint;
+      private String revTimestamp;
+      private long freshnessMark;
+
+      private Snapshot(CheckpointManager cm, String checkpoint, String revTimestamp, long freshnessMark) {
+         this.cm = cm;
+         this.checkpoint = checkpoint;
+         this.revTimestamp = revTimestamp;
+         this.freshnessMark = freshnessMark;
+      }
+
+      CheckpointManager getCheckpointManager() {
+         return cm;
+      }
+
+      public void save() throws SQLException {
+         cm.saveCheckpoint(this);
+      }
+
+      public String toString() {
+         return cm.name + "=" + checkpoint;
+      }
+   }
+
+   public synchronized String getCheckpoint() throws SQLException
    {
       if (checkpoint == null) {
          // read from database
-         psRead.setString(1, name);
-         ResultSet rs = psRead.executeQuery();
-         if(rs.next()) {
-            checkpoint = rs.getString(1);
-            revTimestamp = rs.getString(2);
+         Connection db = conn.getConnection();
+         try {
+            PreparedStatement psRead = db.prepareStatement("SELECT ic_checkpoint, ic_rev_timestamp FROM index_checkpoint WHERE ic_name = ?");
+            psRead.setString(1, name);
+            ResultSet rs = psRead.executeQuery();
+            if(rs.next()) {
+               checkpoint = rs.getString(1);
+               revTimestamp = rs.getString(2);
+               savedCheckpoint = checkpoint;
+               savedRevTimestamp = revTimestamp;
+            }
+            else {
+               checkpoint = "0";
+            }
+            rs.close();
+            psRead.close();
          }
-         else {
-            checkpoint = "0";
+         finally {
+            db.close();
          }
-         rs.close();
       }
       return checkpoint;
    }
 
-   public void updateCheckpoint(String checkpoint) {
+   public synchronized String getRevTimestamp()
+   {
+      return revTimestamp;
+   }
+
+   public synchronized void updateCheckpoint(String checkpoint) {
       updateCheckpoint(checkpoint, revTimestamp);
    }
 
-   public void updateCheckpoint(String checkpoint, String revTimestamp)
+   public synchronized void updateCheckpoint(String checkpoint, String revTimestamp)
    {
       this.checkpoint = checkpoint;
       this.revTimestamp = revTimestamp;
       this.changed = true;
    }
 
-   public void saveCheckpoint() throws IOException, SQLException
+   public synchronized Snapshot snapshot() {
+      return new Snapshot(this, checkpoint, revTimestamp, freshnessTracker != null ? freshnessTracker.mark() : 0);
+   }
+
+   /**
+    * Tell the tracker when the tasks behind a snapshot become searchable
+    */
+   public synchronized void setFreshnessTracker(FreshnessTracker freshnessTracker) {
+      this.freshnessTracker = freshnessTracker;
+   }
+
+   public synchronized FreshnessTracker getFreshnessTracker() {
+      return freshnessTracker;
+   }
+
+   public synchronized void saveCheckpoint() throws IOException, SQLException
    {
       // write to database
       if (changed) {
+         write(checkpoint, revTimestamp);
+         changed = false;
+      }
+   }
+
+   /**
+    * Save a checkpoint taken earlier; the checkpoint may have moved on since then
+    */
+   public synchronized void saveCheckpoint(Snapshot snapshot) throws SQLException
+   {
+      if (snapshot.checkpoint != null &&
+          !(snapshot.checkpoint.equals(savedCheckpoint) &&
+            (snapshot.revTimestamp == null ? savedRevTimestamp == null : snapshot.revTimestamp.equals(savedRevTimestamp)))) {
+         write(snapshot.checkpoint, snapshot.revTimestamp);
+      }
+      // saved once the commit is confirmed, so everything up to the snapshot is searchable now
+      if (freshnessTracker != null) {
+         freshnessTracker.committed(snapshot.freshnessMark);
+      }
+   }
+
+   private void write(String checkpoint, String revTimestamp) throws SQLException {
+      if (conn == null) {
+         throw new RuntimeException("Can't save look-ahead checkpoint "+name);
+      }
+      Connection db = conn.getConnection();
+      try {
+         PreparedStatement psUpdate = db.prepareStatement("UPDATE index_checkpoint SET ic_checkpoint = ?, ic_rev_timestamp = ? WHERE ic_name = ?");
          psUpdate.setString(1, checkpoint);
          psUpdate.setString(2, revTimestamp);
          psUpdate.setString(3, name);
          psUpdate.executeUpdate();
-         changed = false;
+         psUpdate.close();
+      }
+      finally {
+         db.close();
       }
+      savedCheckpoint = checkpoint;
+      savedRevTimestamp = revTimestamp;
    }
 }
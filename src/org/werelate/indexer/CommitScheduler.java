@@ -0,0 +1,162 @@
+package org.werelate.indexer;
+
+import org.apache.solr.client.solrj.SolrServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Commits the index on a background thread so indexing can go on while solr flushes and warms the new searcher.
+ *
+ * Commits are done in the order they are requested. The checkpoints handed in with a commit are saved only
+ * after solr has confirmed that commit, so a checkpoint never gets ahead of what is durably in the index.
+ * A commit requested while another is waiting to start is merged into it.
+ */
+public class CommitScheduler
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   private static final StageMetrics commitMetrics = IndexerMetrics.stage("solr.commit");
+
+   private SolrServer solr;
+   private Thread thread;
+   private String pendingLabel;
+   private List<CheckpointManager.Snapshot> pendingCheckpoints;
+   private boolean committing;
+   private boolean shutdown;
+   private Throwable lastFailure;
+
+   public CommitScheduler(SolrServer solr) {
+      this.solr = solr;
+      this.pendingLabel = null;
+      this.pendingCheckpoints = null;
+      this.committing = false;
+      this.shutdown = false;
+      this.lastFailure = null;
+      thread = new Thread(new Runnable() {
+         public void run() {
+            runCommits();
+         }
+      }, "indexer-commit");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Request a commit of everything sent to solr so far
+    * @param label describes the commit in the log
+    * @param checkpoints checkpoints to save once the commit is confirmed; may be empty
+    */
+   public synchronized void commitAsync(String label, List<CheckpointManager.Snapshot> checkpoints) {
+      if (pendingLabel != null) {
+         // a later checkpoint supersedes an earlier one from the same manager
+         logger.info("Merging commit " + pendingLabel + " into " + label);
+         List<CheckpointManager.Snapshot> merged = new ArrayList<CheckpointManager.Snapshot>();
+         for (CheckpointManager.Snapshot pending : pendingCheckpoints) {
+            boolean superseded = false;
+            for (CheckpointManager.Snapshot checkpoint : checkpoints) {
+               if (checkpoint.getCheckpointManager() == pending.getCheckpointManager()) {
+                  superseded = true;
+               }
+            }
+            if (!superseded) {
+               merged.add(pending);
+            }
+         }
+         merged.addAll(checkpoints);
+         checkpoints = merged;
+      }
+      pendingLabel = label;
+      pendingCheckpoints = checkpoints;
+      notifyAll();
+   }
+
+   private void runCommits() {
+      while (true) {
+         String label;
+         List<CheckpointManager.Snapshot> checkpoints;
+         synchronized (this) {
+            while (pendingLabel == null && !shutdown) {
+               try {
+                  wait();
+               }
+               catch (InterruptedException e) {
+                  return;
+               }
+            }
+            if (pendingLabel == null) {
+               return;
+            }
+            label = pendingLabel;
+            checkpoints = pendingCheckpoints;
+            pendingLabel = null;
+            pendingCheckpoints = null;
+            committing = true;
+         }
+
+         Throwable failure = null;
+         try {
+            long startMillis = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            // wait for the commit to be flushed to disk, but not for the new searcher to warm
+            solr.commit(true, false);
+            commitMetrics.record(startNanos);
+            logger.info("Committed " + label + " in " + (System.currentTimeMillis() - startMillis) + "ms");
+            for (CheckpointManager.Snapshot checkpoint : checkpoints) {
+               checkpoint.save();
+            }
+         }
+         catch (Throwable e) {
+            logger.log(Level.SEVERE, "Commit " + label + " failed; its checkpoints weren't saved", e);
+            failure = e;
+         }
+
+         synchronized (this) {
+            // a later commit covers everything an earlier failed one would have
+            lastFailure = failure;
+            committing = false;
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Wait for the requested commits to finish
+    * @return false if they didn't finish within timeoutMillis
+    */
+   public synchronized boolean waitForCommits(long timeoutMillis) {
+      long endMillis = System.currentTimeMillis() + timeoutMillis;
+      while (pendingLabel != null || committing) {
+         long remaining = endMillis - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return false;
+         }
+         try {
+            wait(remaining);
+         }
+         catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for commit", e);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Throw if the most recent commit failed
+    */
+   public synchronized void checkFailure() {
+      if (lastFailure != null) {
+         throw new RuntimeException("Commit failed: " + lastFailure, lastFailure);
+      }
+   }
+
+   /**
+    * Stop once the requested commits are done; doesn't wait for them
+    */
+   public synchronized void shutdown() {
+      shutdown = true;
+      notifyAll();
+   }
+}
@@ -67,4 +67,8 @@ public class DeleteLogTaskGenerator extends BaseTaskGenerator
    {
       cm.updateCheckpoint(it.getSequenceId()+"/"+it.getPageId());
    }
+
+   public long getEventMillis(IndexTask it) {
+      return parseWikiTimestamp(it.getSequenceId());
+   }
 }
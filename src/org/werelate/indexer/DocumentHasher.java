@@ -0,0 +1,57 @@
+package org.werelate.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes a 64-bit hash of a solr document that is the same every time the same document is generated:
+ * fields are hashed in name order, values in the order they were added, along with the boosts.
+ */
+public class DocumentHasher
+{
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   private long h;
+
+   private DocumentHasher() {
+      h = FNV_OFFSET;
+   }
+
+   private void add(String s) {
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         h = (h ^ (c & 0xff)) * FNV_PRIME;
+         h = (h ^ (c >>> 8)) * FNV_PRIME;
+      }
+      // separator, so "ab","c" and "a","bc" hash differently
+      h = (h ^ 0xff) * FNV_PRIME;
+      h = (h ^ 0xff) * FNV_PRIME;
+   }
+
+   /**
+    * Returns the hash of the document; never 0, so 0 can mean "no hash"
+    */
+   public static long hash(SolrInputDocument doc) {
+      DocumentHasher hasher = new DocumentHasher();
+      hasher.add(Float.toString(doc.getDocumentBoost()));
+      List<String> names = new ArrayList<String>(doc.getFieldNames());
+      Collections.sort(names);
+      for (String name : names) {
+         SolrInputField field = doc.getField(name);
+         hasher.add(name);
+         hasher.add(Float.toString(field.getBoost()));
+         hasher.add(Integer.toString(field.getValueCount()));
+         if (field.getValueCount() > 0) {
+            for (Object value : field.getValues()) {
+               hasher.add(value == null ? "" : value.toString());
+            }
+         }
+      }
+      return hasher.h == 0 ? 1 : hasher.h;
+   }
+}
@@ -0,0 +1,124 @@
+package org.werelate.indexer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Tracks how far one task generator's changes trail the wiki.
+ *
+ * Each task the generator hands to the indexer is remembered with the time of its wiki event until a commit covering it
+ * is confirmed. The lag is the age of the oldest change that isn't searchable yet, or 0 when everything the generator has
+ * read is searchable. The backlog is the number of tasks that have been read from the wiki but aren't searchable yet.
+ * The worst lag is the largest lag seen over the last few minutes.
+ */
+public class FreshnessTracker implements FreshnessTrackerMBean
+{
+   private String name;
+   private long windowMillis;
+   // submission number and event time of each task that isn't searchable yet, oldest first
+   private Deque<long[]> pending;
+   // time and lag of recent samples, oldest first
+   private Deque<long[]> samples;
+   private long submitted;
+   private int unsubmitted;
+
+   FreshnessTracker(String name) {
+      this.name = name;
+      this.windowMillis = 10 * 60 * 1000L;
+      this.pending = new ArrayDeque<long[]>();
+      this.samples = new ArrayDeque<long[]>();
+      this.submitted = 0;
+      this.unsubmitted = 0;
+   }
+
+   public synchronized void setWindowMinutes(int minutes) {
+      windowMillis = minutes * 60 * 1000L;
+   }
+
+   /**
+    * Tasks have been read from the wiki
+    */
+   public synchronized void fetched(int tasks) {
+      unsubmitted += tasks;
+   }
+
+   /**
+    * A task has been queued for indexing
+    * @param eventMillis when the change happened on the wiki, or 0 if not known, in which case now is used
+    */
+   public synchronized void submitted(long eventMillis) {
+      unsubmitted = Math.max(0, unsubmitted - 1);
+      pending.addLast(new long[] {++submitted, eventMillis > 0 ? eventMillis : System.currentTimeMillis()});
+   }
+
+   /**
+    * A task has been skipped because it was already seen or indexed
+    */
+   public synchronized void skipped() {
+      unsubmitted = Math.max(0, unsubmitted - 1);
+   }
+
+   /**
+    * The generator stopped before queueing all of the tasks it read; they'll be read again next time
+    */
+   public synchronized void stopped() {
+      unsubmitted = 0;
+   }
+
+   /**
+    * Marks the tasks queued so far; pass the mark to committed once a commit covering them is confirmed
+    */
+   public synchronized long mark() {
+      return submitted;
+   }
+
+   public synchronized void committed(long mark) {
+      long now = System.currentTimeMillis();
+      boolean first = true;
+      while (pending.size() > 0 && pending.peekFirst()[0] <= mark) {
+         long[] task = pending.removeFirst();
+         if (first) {
+            // the oldest change in the commit waited the longest
+            addSample(now, now - task[1]);
+            first = false;
+         }
+      }
+   }
+
+   private void addSample(long now, long lagMillis) {
+      samples.addLast(new long[] {now, lagMillis});
+      while (samples.size() > 0 && samples.peekFirst()[0] < now - windowMillis) {
+         samples.removeFirst();
+      }
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public synchronized long getLagMillis() {
+      return pending.size() > 0 ? Math.max(0, System.currentTimeMillis() - pending.peekFirst()[1]) : 0;
+   }
+
+   public long getLagSeconds() {
+      return getLagMillis() / 1000;
+   }
+
+   public synchronized long getWorstLagSeconds() {
+      long now = System.currentTimeMillis();
+      addSample(now, getLagMillis());
+      long worst = 0;
+      for (long[] sample : samples) {
+         worst = Math.max(worst, sample[1]);
+      }
+      return worst / 1000;
+   }
+
+   public synchronized long getBacklog() {
+      return unsubmitted + pending.size();
+   }
+
+   public synchronized String toString() {
+      return String.format("%s: lag=%ds worst lag=%ds backlog=%d", name, getLagSeconds(), getWorstLagSeconds(), getBacklog());
+   }
+}
@@ -0,0 +1,12 @@
+package org.werelate.indexer;
+
+/**
+ * What JMX shows about how far one task generator's changes trail the wiki
+ */
+public interface FreshnessTrackerMBean
+{
+   public String getName();
+   public long getLagSeconds();
+   public long getWorstLagSeconds();
+   public long getBacklog();
+}
@@ -0,0 +1,182 @@
+package org.werelate.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs index batches through a chain of stages, each on its own thread, connected by bounded queues.
+ * A batch moves on to the next stage as soon as the previous stage is done with it, so fetching one batch
+ * overlaps with converting, standardizing and sending the batches ahead of it.
+ *
+ * Batches leave the last stage in the order they were submitted. If a stage fails on a batch, that batch
+ * is dropped, later batches keep flowing, and the failure is thrown from the next call to submit or flush.
+ * The last stage can check hasDroppedBatches to tell whether any batch ahead of the one it's processing was dropped.
+ */
+public class IndexPipeline
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   public interface Stage {
+      public String getName();
+      public void process(PageBatch batch) throws Exception;
+   }
+
+   private static final PageBatch END_OF_BATCHES = new PageBatch(null);
+
+   private List<BlockingQueue<PageBatch>> queues;
+   private List<Thread> threads;
+   private long submitted;
+   private long completed;
+   private Throwable failure;
+   private String failedStage;
+   private boolean droppedBatches;
+
+   public IndexPipeline(int queueSize, Stage... stages) {
+      queues = new ArrayList<BlockingQueue<PageBatch>>();
+      threads = new ArrayList<Thread>();
+      submitted = 0;
+      completed = 0;
+      failure = null;
+      droppedBatches = false;
+      for (int i = 0; i < stages.length; i++) {
+         queues.add(new ArrayBlockingQueue<PageBatch>(Math.max(1, queueSize)));
+      }
+      for (int i = 0; i < stages.length; i++) {
+         Thread t = new Thread(new StageRunner(stages[i], queues.get(i), i+1 < stages.length ? queues.get(i+1) : null),
+                               "indexer-"+stages[i].getName());
+         t.setDaemon(true);
+         threads.add(t);
+         t.start();
+      }
+   }
+
+   private class StageRunner implements Runnable {
+      private Stage stage;
+      private BlockingQueue<PageBatch> in;
+      private BlockingQueue<PageBatch> out;
+
+      public StageRunner(Stage stage, BlockingQueue<PageBatch> in, BlockingQueue<PageBatch> out) {
+         this.stage = stage;
+         this.in = in;
+         this.out = out;
+      }
+
+      public void run() {
+         try {
+            while (true) {
+               PageBatch batch = in.take();
+               if (batch != END_OF_BATCHES && !batch.isFailed()) {
+                  try {
+                     stage.process(batch);
+                  }
+                  catch (Throwable e) {
+                     logger.log(Level.SEVERE, "Stage "+stage.getName()+" failed on batch starting with sequenceId="+batch.getFirstSequenceId(), e);
+                     batch.setFailed(true);
+                     fail(stage.getName(), e);
+                  }
+               }
+               if (out != null) {
+                  out.put(batch);
+               }
+               else if (batch != END_OF_BATCHES) {
+                  complete(batch.isFailed());
+               }
+               if (batch == END_OF_BATCHES) {
+                  break;
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            // shutting down
+         }
+      }
+   }
+
+   private synchronized void fail(String stageName, Throwable e) {
+      if (failure == null) {
+         failure = e;
+         failedStage = stageName;
+      }
+   }
+
+   private synchronized void complete(boolean dropped) {
+      completed++;
+      if (dropped) {
+         droppedBatches = true;
+      }
+      notifyAll();
+   }
+
+   /**
+    * True if a batch has left the last stage without being processed by every stage since the pipeline started.
+    * Its tasks weren't indexed, even after the failure has been thrown from submit or flush.
+    */
+   public synchronized boolean hasDroppedBatches() {
+      return droppedBatches;
+   }
+
+   private synchronized void checkFailure() {
+      if (failure != null) {
+         Throwable e = failure;
+         failure = null;
+         if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+         }
+         throw new RuntimeException("Index pipeline stage "+failedStage+" failed: "+e, e);
+      }
+   }
+
+   /**
+    * Hand a batch to the first stage; blocks while the first stage's queue is full
+    */
+   public void submit(PageBatch batch) {
+      checkFailure();
+      synchronized (this) {
+         submitted++;
+      }
+      try {
+         queues.get(0).put(batch);
+      }
+      catch (InterruptedException e) {
+         synchronized (this) {
+            submitted--;
+         }
+         throw new RuntimeException("Interrupted submitting batch", e);
+      }
+   }
+
+   /**
+    * Wait until every submitted batch has left the last stage
+    */
+   public void flush() {
+      synchronized (this) {
+         while (completed < submitted) {
+            try {
+               wait();
+            }
+            catch (InterruptedException e) {
+               throw new RuntimeException("Interrupted waiting for index pipeline", e);
+            }
+         }
+      }
+      checkFailure();
+   }
+
+   public void shutdown() {
+      try {
+         queues.get(0).put(END_OF_BATCHES);
+         for (Thread t : threads) {
+            t.join();
+         }
+      }
+      catch (InterruptedException e) {
+         for (Thread t : threads) {
+            t.interrupt();
+         }
+      }
+   }
+}
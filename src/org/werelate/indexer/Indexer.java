@@ -2,17 +2,19 @@ package org.werelate.indexer;
 
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
 import java.sql.SQLException;
 
 import net.spy.memcached.AddrUtil;
@@ -22,11 +24,12 @@ import org.apache.commons.cli.*;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.common.SolrInputDocument;
 import org.werelate.util.DatabaseConnectionHelper;
 import org.werelate.util.HttpClientHelper;
 import org.werelate.util.Utils;
+import org.werelate.util.WikiReader;
+import org.werelate.util.WikiRevisionParser;
 import org.werelate.wiki.*;
 import nu.xom.*;
 
@@ -46,12 +49,40 @@ public class Indexer
    private int maxBackgroundPages;
    private int maxIndexTaskSize;
    private int indexBatchSize;
-   private Map<String,Integer> indexedRevisions;
+   private PageIdMap indexedRevisions;
+   private PageIdMap indexedHashes;
+   // a full re-index sends every document, whether or not it hashes the same as the one in the index
+   private boolean sendUnchangedDocs = false;
+   private PacingController pacing;
+   private static final StageMetrics taskMetrics = IndexerMetrics.stage("wiki.tasks");
+   private static final StageMetrics fetchMetrics = IndexerMetrics.stage("wiki.fetch");
+   private static final StageMetrics convertMetrics = IndexerMetrics.stage("convert");
+   private static final StageMetrics standardizeMetrics = IndexerMetrics.stage("standardize");
+   private TaskQueue taskQueue;
+   private final Object submitLock = new Object();
+   private int wikiFailures;
+   private int generatorThreads;
+   private volatile boolean keepGenerating;
+   private long catchUpLagMillis;
+   private volatile boolean catchUp;
+   private boolean revisionsCommitted;
+   private IndexPipeline pipeline;
+   private ExecutorService converters;
+   private ExecutorService prefetcher;
+   private Semaphore conversionPermits;
    private DatabaseConnectionHelper conn;
+   private TitleSortIndex titleSortIndex;
+   private TitleSorter batchTitleSorter;
+   private TitleSortRebalancer titleSortRebalancer;
    private HttpClientHelper wikiClient;
    private String wikiHostname;
    private String indexUrl;
    private SolrServer solr;
+   private SolrUpdateClient updateClient;
+   private CommitScheduler commitScheduler;
+   private int commitTimeoutSeconds;
+   private String bulkDataDir;
+   private BulkIndexBuilder bulkBuilder;
    private MemcachedClient memcache;
    private PlaceStandardizer placeStandardizer;
    private CheckpointManager irCm;
@@ -80,18 +111,38 @@ public class Indexer
       this.properties = p;
       this.conn = null;
       this.memcache = null;
+      this.bulkDataDir = null;
+      this.bulkBuilder = null;
+   }
+
+   /**
+    * Build the index in-process in the specified data directory instead of sending documents to index_url
+    */
+   public void setBulkDataDir(String bulkDataDir) {
+      this.bulkDataDir = bulkDataDir;
    }
 
    private void startIndexing() throws IOException, ClassNotFoundException, IllegalAccessException, InstantiationException, SQLException {
       // calc when we should stop
       int millis = Integer.parseInt(properties.getProperty("max_index_seconds")) * 1000;
       stopTimeMillis = millis > 0 ? System.currentTimeMillis() + millis : 0;
-      indexedRevisions = new HashMap<String,Integer>();
+      // remembers the revision of each page in the index from one run to the next
+      indexedRevisions = new PageIdMap(properties.getProperty("revision_map_file", "indexed_revisions.map"),
+                                       Integer.parseInt(properties.getProperty("revision_map_version", "1")));
+      // and a hash of each page's document, so documents that come out the same as last time aren't sent again
+      indexedHashes = new PageIdMap(properties.getProperty("doc_hash_file", "indexed_hashes.map"),
+                                    Integer.parseInt(properties.getProperty("revision_map_version", "1")));
+      revisionsCommitted = false;
       foregroundDelayMillis = Integer.parseInt(properties.getProperty("foreground_delay_millis"));
       backgroundDelayMillis = Integer.parseInt(properties.getProperty("background_delay_millis"));
       maxBackgroundPages = Integer.parseInt(properties.getProperty("max_background_pages"));
       maxIndexTaskSize = Integer.parseInt(properties.getProperty("max_index_task_size"));
       indexBatchSize = Integer.parseInt(properties.getProperty("index_batch_size"));
+      pacing = new PacingController(properties, indexBatchSize);
+      IndexerMetrics.reset();
+      taskQueue = new TaskQueue();
+      wikiFailures = 0;
+      generatorThreads = Integer.parseInt(properties.getProperty("task_generator_threads", "4"));
       indexUrl = properties.getProperty("index_url");
       wikiHostname = properties.getProperty("wiki_hostname");
 
@@ -101,10 +152,23 @@ public class Indexer
       conn.connect();
 
       // Set up http client helpers
-      wikiClient = new HttpClientHelper(true);
+      wikiClient = new HttpClientHelper(true, Integer.parseInt(properties.getProperty("wiki_http_connections", "8")));
 
       // Set up solr connection
-      solr = new CommonsHttpSolrServer(indexUrl);
+      if (bulkDataDir != null) {
+         bulkBuilder = new BulkIndexBuilder(properties.getProperty("bulk_solr_home", ".."), bulkDataDir,
+                                            Integer.parseInt(properties.getProperty("bulk_ram_buffer_mb", "512")),
+                                            Integer.parseInt(properties.getProperty("bulk_merge_factor", "100")));
+         solr = bulkBuilder.getSolrServer();
+      }
+      else {
+         solr = SolrUpdateClient.createHttpServer(indexUrl, properties.getProperty("solr_update_format", "javabin"),
+                                                  Integer.parseInt(properties.getProperty("solr_update_connections", "2")));
+      }
+      commitScheduler = new CommitScheduler(solr);
+      commitTimeoutSeconds = Integer.parseInt(properties.getProperty("commit_timeout_seconds", "60"));
+      updateClient = new SolrUpdateClient(solr, pacing, Integer.parseInt(properties.getProperty("solr_update_connections", "2")),
+                                          Integer.parseInt(properties.getProperty("pipeline_queue_size", "2")));
 
       // Set up redir cache
       String memcacheAddress = properties.getProperty("memcache_address");
@@ -120,6 +184,16 @@ public class Indexer
       mlCm = new CheckpointManager(conn, "move_log");
       dlCm = new CheckpointManager(conn, "delete_log");
       apCm = new CheckpointManager(conn, "all_pages");
+      int freshnessWindowMinutes = Integer.parseInt(properties.getProperty("freshness_window_minutes", "10"));
+      irCm.setFreshnessTracker(IndexerMetrics.freshness("requests"));
+      revCm.setFreshnessTracker(IndexerMetrics.freshness("revisions"));
+      mlCm.setFreshnessTracker(IndexerMetrics.freshness("renames"));
+      dlCm.setFreshnessTracker(IndexerMetrics.freshness("deletes"));
+      for (CheckpointManager cm : new CheckpointManager[] {irCm, revCm, mlCm, dlCm}) {
+         cm.getFreshnessTracker().setWindowMinutes(freshnessWindowMinutes);
+      }
+      catchUpLagMillis = Long.parseLong(properties.getProperty("catch_up_lag_seconds", "0")) * 1000;
+      catchUp = false;
 
       // create page indexers
       articlePageIndexer = new ArticlePageIndexer(conn);
@@ -138,12 +212,125 @@ public class Indexer
       familyTalkPageIndexer = new FamilyTalkPageIndexer(conn);
       categoryPageIndexer = new CategoryPageIndexer(conn);
       defaultPageIndexer = new DefaultPageIndexer(conn);
+
+      // optionally look up title sort values in memory and write new ones back once per batch
+      if (Boolean.parseBoolean(properties.getProperty("title_sort_in_memory", "false"))) {
+         try {
+            titleSortIndex = TitleSortIndex.load(conn);
+         }
+         catch (IllegalStateException e) {
+            logger.warning("Looking up title sort values in the database: " + e.getMessage());
+         }
+      }
+      BasePageIndexer[] pageIndexers = {articlePageIndexer, transcriptPageIndexer, userPageIndexer, imagePageIndexer,
+            givennamePageIndexer, surnamePageIndexer, placePageIndexer, sourcePageIndexer, mysourcePageIndexer,
+            repositoryPageIndexer, personPageIndexer, personTalkPageIndexer, familyPageIndexer, familyTalkPageIndexer,
+            categoryPageIndexer, defaultPageIndexer};
+      // renumber the keys around a new title sort key when there's no room for it, instead of rebuilding title_sort_key
+      if (Boolean.parseBoolean(properties.getProperty("title_sort_rebalance", "true"))) {
+         titleSortRebalancer = new TitleSortRebalancer(Integer.parseInt(properties.getProperty("title_sort_min_spacing", "64")),
+                                                       Integer.parseInt(properties.getProperty("title_sort_max_window", "512")));
+      }
+      TitleSorter titleSorter = null;
+      if (titleSortIndex != null) {
+         titleSortIndex.setRebalancer(titleSortRebalancer);
+         titleSorter = new TitleSorter(titleSortIndex);
+      }
+      // otherwise optionally look up the title sort values of each batch together once its pages have been converted
+      else if (Boolean.parseBoolean(properties.getProperty("title_sort_batch", "false")) && isTitleSortOrderChecked()) {
+         batchTitleSorter = new TitleSorter(conn);
+         batchTitleSorter.setRebalancer(titleSortRebalancer);
+         for (BasePageIndexer indexer : pageIndexers) {
+            indexer.setDeferTitleSortValues(true);
+         }
+      }
+      // the page indexers' own title sorters share a lock, so sharing one title sorter between them is the same
+      else if (titleSortRebalancer != null) {
+         titleSorter = new TitleSorter(conn);
+         titleSorter.setRebalancer(titleSortRebalancer);
+      }
+      if (titleSorter != null) {
+         for (BasePageIndexer indexer : pageIndexers) {
+            indexer.setTitleSorter(titleSorter);
+         }
+      }
+
+      // page indexers are thread-safe, so pages within a batch can be converted in parallel
+      int workerThreads = Integer.parseInt(properties.getProperty("index_worker_threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+      converters = Executors.newFixedThreadPool(Math.max(1, workerThreads), new ThreadFactory() {
+         private int cnt = 0;
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "indexer-convert-"+(++cnt));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+
+      conversionPermits = new Semaphore(2 * Math.max(1, workerThreads));
+
+      if (Boolean.parseBoolean(properties.getProperty("prefetch_tasks", "true"))) {
+         prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int cnt = 0;
+            public synchronized Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "indexer-prefetch-"+(++cnt));
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+
+      // start the fetch -> convert -> standardize -> solr pipeline
+      pipeline = createPipeline(Integer.parseInt(properties.getProperty("pipeline_queue_size", "2")));
    }
 
    private void cleanup()
    {
       logger.info("Cleaning up");
-      // close the database connection
+      logger.info(IndexerMetrics.summary());
+      if (pipeline != null) {
+         pipeline.shutdown();
+      }
+      if (converters != null) {
+         converters.shutdown();
+      }
+      if (prefetcher != null) {
+         prefetcher.shutdown();
+      }
+      if (titleSortIndex != null) {
+         try {
+            titleSortIndex.flush();
+         }
+         catch (SQLException e) {
+            logger.warning("Unable to write title sort keys: " + e);
+         }
+      }
+      if (updateClient != null) {
+         updateClient.shutdown();
+      }
+      if (commitScheduler != null) {
+         commitScheduler.shutdown();
+      }
+      if (bulkBuilder != null) {
+         bulkBuilder.close();
+      }
+      if (indexedRevisions != null) {
+         try {
+            // the map can be trusted next time only if everything recorded in it made it into a commit
+            indexedRevisions.close(revisionsCommitted);
+         }
+         catch (IOException e) {
+            logger.warning("Unable to close revision map: " + e);
+         }
+      }
+      if (indexedHashes != null) {
+         try {
+            indexedHashes.close(revisionsCommitted);
+         }
+         catch (IOException e) {
+            logger.warning("Unable to close document hash map: " + e);
+         }
+      }
+      // close the database connections
       if (conn != null) {
          conn.close();
       }
@@ -212,21 +399,61 @@ public class Indexer
       return indexer.index(pageId, ns, fullTitle, lastModDate, popularity, contents, users, trees);
    }
 
-   private void indexBatch(List<IndexTask> indexBatch) throws IOException, ParsingException, SolrServerException, SQLException {
-      logger.info("Indexing batch size="+indexBatch.size()+" first sequenceId="+indexBatch.get(0).getSequenceId());
+   private void indexBatch(List<IndexTask> indexBatch, boolean skipUnchanged) {
+      // hand the batch to the pipeline; this blocks only when the first stage is backed up
+      PageBatch batch = new PageBatch(new ArrayList<IndexTask>(indexBatch));
+      if (skipUnchanged) {
+         for (IndexTask it : indexBatch) {
+            batch.setSkipUnchanged(it.getPageId());
+         }
+      }
+      pipeline.submit(batch);
+   }
+
+   /**
+    * Submit the next batch from the task queue
+    * @param full submit only if a full batch is waiting
+    * @return the number of tasks submitted
+    */
+   private int submitQueuedBatch(boolean full) {
+      // take and submit together, so once a generator has submitted the queue, its merged tasks are in the pipeline
+      // ahead of its commit even when another generator took them
+      synchronized (submitLock) {
+         PageBatch batch = taskQueue.takeBatch(pacing.getBatchSize(), full);
+         if (batch == null) {
+            return 0;
+         }
+         pipeline.submit(batch);
+         return batch.getTasks().size();
+      }
+   }
 
+   // submit every task waiting in the task queue
+   private void submitQueuedTasks() {
+      while (submitQueuedBatch(false) > 0) {
+      }
+   }
+
+   // pipeline stage 1: read the contents of the pages to update from the wiki, starting the conversion of each page as soon as it is read
+   private void fetchPages(final PageBatch batch) throws IOException, ParsingException {
+      List<IndexTask> indexBatch = batch.getTasks();
+      if (indexBatch.size() == 0) {
+         return; // pages read from a dump are already being converted
+      }
+      logger.info("Indexing batch size="+indexBatch.size()+" first sequenceId="+batch.getFirstSequenceId());
+
+      // a delete can arrive after a later undelete or update for the same page from another generator,
+      // so fetch deleted pages too, and delete only the ones the wiki no longer has
+      final Set<String> deletes = new HashSet<String>();
       StringBuilder pageIds = new StringBuilder();
       for (IndexTask it : indexBatch) {
          if (it.getAction() == IndexTask.ACTION_DELETE) {
-//            logger.info("  deleting "+it.getPageId());
-            solr.deleteById(it.getPageId());
+            deletes.add(it.getPageId());
          }
-         else {
-            if (pageIds.length() > 0) {
-               pageIds.append(",");
-            }
-            pageIds.append(it.getPageId());
+         if (pageIds.length() > 0) {
+            pageIds.append(",");
          }
+         pageIds.append(it.getPageId());
       }
 
       if (pageIds.length() > 0) {
@@ -234,7 +461,8 @@ public class Indexer
          args.put("page_id", pageIds.toString());
          args.put("index", "t");
          GetMethod m = new GetMethod(Utils.getWikiAjaxUrl(wikiHostname, "wfGetPageIndexContents", args));
-         Elements pages = null;
+         long startMillis = System.currentTimeMillis();
+         long startNanos = System.nanoTime();
          try
          {
             wikiClient.executeHttpMethod(m);
@@ -242,124 +470,391 @@ public class Indexer
             if (statusCode != 200) {
                throw new RuntimeException("Unexpected http status code="+statusCode+" for pages="+pageIds.toString());
             }
-            String response=HttpClientHelper.getResponse(m);
-            if (Utils.isEmpty(response)) {
-               throw new RuntimeException("Unexpected empty response for pages="+pageIds.toString());
-            }
-            Element root = wikiClient.parseText(response).getRootElement();
+            Element root = wikiClient.parseResponse(m, new PageContentsReader(new PageContentsReader.PageHandler() {
+               public void handle(PageContents page) {
+                  deletes.remove(page.getPageId());
+                  convertPage(batch, page);
+               }
+            })).getRootElement();
             if (Integer.parseInt(root.getAttributeValue("status")) != HttpClientHelper.STATUS_OK) {
                throw new RuntimeException("Unexpected status="+root.getAttributeValue("status")+" for pages="+pageIds.toString());
             }
-            pages = root.getChildElements("page");
+            // the response is read only as fast as the pages are converted, so leave out the time spent waiting for the
+            // workers; otherwise a backlog of conversions would look like a slow wiki
+            long waitNanos = batch.getConversionWaitNanos();
+            pacing.fetched(System.currentTimeMillis() - startMillis - waitNanos / 1000000);
+            fetchMetrics.record(startNanos + waitNanos, indexBatch.size(), HttpClientHelper.getLastResponseBytes());
          }
          finally
          {
             m.releaseConnection();
+            // retries mean the wiki is struggling
+            int failures = wikiClient.getFailedAttempts();
+            if (failures > wikiFailures) {
+               wikiFailures = failures;
+               pacing.error();
+            }
          }
+      }
+      for (String pageId : deletes) {
+         batch.getDeleteIds().add(pageId);
+         batch.getRevisions().put(pageId, 0);
+      }
+   }
 
-         // index each returned page
-         List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
-         List<String> userList = new ArrayList<String>();
-         List<String> treeList = new ArrayList<String>();
-         for (int i=0; i < pages.size(); i++)
-         {
-            Element page = pages.get(i);
-            String pageId = page.getAttributeValue("page_id");
-            String fullTitle = page.getAttributeValue("title");
-            if (Utils.isEmpty(fullTitle)) {
-               logger.warning("Empty page="+pageId);
-               continue;
+   private void convertPage(PageBatch batch, final PageContents page) {
+      // if we haven't already indexed this revision (check again because not all generators return revisions)
+      if (!batch.isSkipUnchanged(page.getPageId()) || indexedRevisions.get(page.getPageId()) < page.getRevId()) {
+         // don't let the parser get too far ahead of the workers
+         long waitStartNanos = System.nanoTime();
+         try {
+            conversionPermits.acquire();
+            batch.addConversionWaitNanos(System.nanoTime() - waitStartNanos);
+         }
+         catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted reading pages", e);
+         }
+         batch.getPages().add(page);
+         batch.getConversions().add(converters.submit(new Callable<SolrInputDocument>() {
+            public SolrInputDocument call() throws SQLException {
+               long startNanos = System.nanoTime();
+               try {
+                  return indexPage(page.getPageId(), page.getNamespace(), page.getFullTitle(), page.getRevTimestamp(), page.getPopularity(),
+                                   page.getContents(), page.getUsers(), page.getTrees());
+               }
+               finally {
+                  convertMetrics.record(startNanos);
+                  page.releaseContents();
+                  conversionPermits.release();
+               }
             }
+         }));
+      }
+   }
 
-            Elements users = page.getChildElements("user");
-            userList.clear();
-            for (int u=0; u < users.size(); u++) {
-               Element user = users.get(u);
-               userList.add(user.getValue());
+   // pipeline stage 2: collect the solr documents converted from the fetched pages
+   private void convertPages(PageBatch batch) throws SQLException, InterruptedException {
+      List<PageContents> pages = batch.getPages();
+      for (int i = 0; i < pages.size(); i++) {
+         PageContents page = pages.get(i);
+         SolrInputDocument doc;
+         try {
+            doc = batch.getConversions().get(i).get();
+         }
+         catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+               throw (SQLException)e.getCause();
             }
-            Elements trees = page.getChildElements("tree");
-            treeList.clear();
-            for (int t=0; t < trees.size(); t++) {
-               Element tree = trees.get(t);
-               treeList.add(tree.getValue());
+            else if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException)e.getCause();
             }
-            int revId = Integer.parseInt(page.getAttributeValue("rev_id"));
-
-            // if we haven't already indexed this revision (check again because not all generators return revisions)
-            Integer revisionId = indexedRevisions.get(pageId);
-            int ns = Integer.parseInt(page.getAttributeValue("namespace"));
-            int popularity = 0;
-            String popularityString = page.getAttributeValue("popularity");
-            if (popularityString.length() > 0) popularity = Integer.parseInt(popularityString);
-            if (revisionId == null || revisionId < revId) {
-               SolrInputDocument doc = indexPage(pageId, ns, fullTitle, page.getAttributeValue("rev_timestamp"), popularity,
-                                                 page.getFirstChildElement("contents").getValue(), userList, treeList);
-               if (doc != null) {
-//                  logger.info("  indexing page "+pageId);
-                  docs.add(doc);
-               }
-               else { // could be a redirect that we're no longer indexing
-//                  logger.info("  deleting redirect "+pageId);
-                  if (ns == Utils.NS_PLACE) {
-                     memcache.delete(Utils.getMemcacheKey(PlaceStandardizer.MC_PREFIX, fullTitle)); // remove title from cache
-                  }
-                  solr.deleteById(pageId);
-               }
-               // remember indexing this revision
-               indexedRevisions.put(pageId, revId);
+            throw new RuntimeException("Error indexing page="+page.getPageId(), e.getCause());
+         }
+         if (doc != null) {
+//            logger.info("  indexing page "+page.getPageId());
+            batch.getDocs().add(doc);
+         }
+         else { // could be a redirect that we're no longer indexing
+//            logger.info("  deleting redirect "+page.getPageId());
+            if (page.getNamespace() == Utils.NS_PLACE) {
+               memcache.delete(Utils.getMemcacheKey(PlaceStandardizer.MC_PREFIX, page.getFullTitle())); // remove title from cache
             }
+            batch.getDeleteIds().add(page.getPageId());
          }
+         batch.getRevisions().put(page.getPageId(), doc != null ? page.getRevId() : 0);
+      }
+      pages.clear();
+      batch.getConversions().clear();
+      if (titleSortIndex != null) {
+         titleSortIndex.flush();
+      }
+      if (batchTitleSorter != null) {
+         assignTitleSortValues(batch.getDocs());
+      }
+   }
 
-         if (docs.size() > 0) {
-//            logger.info("  sending " + docs.size() + " docs to solr");
-            placeStandardizer.standardizePlaces(docs);
-            solr.add(docs);
+   // a batch's new keys are placed between neighbors picked in String.compareTo order, so that has to be the table's order
+   private boolean isTitleSortOrderChecked() throws SQLException {
+      try {
+         TitleSortIndex.checkCollation(conn);
+         return true;
+      }
+      catch (IllegalStateException e) {
+         logger.warning("Looking up title sort values one at a time: " + e.getMessage());
+         return false;
+      }
+   }
+
+   // replace the titles the page indexers left in the title sort value fields with their sort values
+   private void assignTitleSortValues(List<SolrInputDocument> docs) throws SQLException {
+      List<String> titles = new ArrayList<String>(docs.size());
+      for (SolrInputDocument doc : docs) {
+         Object title = doc.getFieldValue(Utils.FLD_TITLE_SORT_VALUE);
+         if (title instanceof String) {
+            titles.add((String)title);
+         }
+      }
+      Map<String,Integer> values = batchTitleSorter.getSortValues(titles);
+      for (SolrInputDocument doc : docs) {
+         Object title = doc.getFieldValue(Utils.FLD_TITLE_SORT_VALUE);
+         if (title instanceof String) {
+            // setField keeps the field in the same place, so the document hashes the same as it did before
+            doc.setField(Utils.FLD_TITLE_SORT_VALUE, values.get(title));
          }
       }
    }
 
-   private boolean index(BaseTaskGenerator itg, CheckpointManager cm, int delayMillis, int maxPages) throws IOException, SQLException, ParsingException, SolrServerException {
+   // pipeline stage 3: standardize the places in the documents, then drop the documents that are the same as the ones in the index
+   private void standardizePlaces(PageBatch batch) throws IOException, ParsingException {
+      if (batch.getDocs().size() > 0) {
+         long startNanos = System.nanoTime();
+         placeStandardizer.standardizePlaces(batch.getDocs());
+         standardizeMetrics.record(startNanos, batch.getDocs().size(), 0);
+         skipUnchangedDocs(batch);
+      }
+   }
+
+   private void skipUnchangedDocs(PageBatch batch) {
+      Iterator<SolrInputDocument> i = batch.getDocs().iterator();
+      while (i.hasNext()) {
+         SolrInputDocument doc = i.next();
+         String pageId = doc.getFieldValue(Utils.FLD_PAGE_ID).toString();
+         long hash = DocumentHasher.hash(doc);
+         if (!sendUnchangedDocs && indexedHashes.get(pageId) == hash) {
+            i.remove();
+         }
+         else {
+            batch.getDocHashes().put(pageId, hash);
+         }
+      }
+   }
+
+   // pipeline stage 4: queue the deletes and documents to be sent to solr while the next batches are converted
+   private void sendToSolr(PageBatch batch) {
+      if (batch.getDeleteIds().size() > 0 || batch.getDocs().size() > 0) {
+//         logger.info("  sending " + batch.getDocs().size() + " docs to solr");
+         updateClient.send("starting with sequenceId="+batch.getFirstSequenceId(), batch.getDeleteIds(), batch.getDocs());
+      }
+      // remember indexing these revisions; if the send fails, the commit fails and the map isn't trusted next time
+      for (Map.Entry<String,Integer> entry : batch.getRevisions().entrySet()) {
+         if (entry.getValue() > 0) {
+            indexedRevisions.put(entry.getKey(), entry.getValue());
+         }
+         else {
+            indexedRevisions.remove(entry.getKey());
+            indexedHashes.remove(entry.getKey());
+         }
+      }
+      for (Map.Entry<String,Long> entry : batch.getDocHashes().entrySet()) {
+         indexedHashes.put(entry.getKey(), entry.getValue());
+      }
+      if (batch.isCommitMarker()) {
+         // everything ahead of the marker has to reach solr before the commit is issued
+         updateClient.flush();
+         if (pipeline.hasDroppedBatches()) {
+            // the checkpoints would move past the dropped batch's tasks, and a dump would commit a partial index;
+            // fail the marker so the commit is skipped and the failure is thrown from the next submit or flush
+            throw new RuntimeException("Not committing " + batch.getCommitLabel() + " because an earlier batch failed");
+         }
+         commitScheduler.commitAsync(batch.getCommitLabel(), batch.getCommitCheckpoints());
+      }
+   }
+
+   private IndexPipeline createPipeline(int queueSize) {
+      return new IndexPipeline(queueSize,
+         new IndexPipeline.Stage() {
+            public String getName() { return "fetch"; }
+            public void process(PageBatch batch) throws Exception { fetchPages(batch); }
+         },
+         new IndexPipeline.Stage() {
+            public String getName() { return "convert"; }
+            public void process(PageBatch batch) throws Exception { convertPages(batch); }
+         },
+         new IndexPipeline.Stage() {
+            public String getName() { return "standardize"; }
+            public void process(PageBatch batch) throws Exception { standardizePlaces(batch); }
+         },
+         new IndexPipeline.Stage() {
+            public String getName() { return "solr"; }
+            public void process(PageBatch batch) throws Exception { sendToSolr(batch); }
+         });
+   }
+
+   /**
+    * Switch into or out of catch-up mode, using the largest batches and skipping background indexing,
+    * when the lag of any of the change generators crosses catch_up_lag_seconds
+    */
+   private synchronized void checkCatchUp() {
+      if (catchUpLagMillis <= 0) {
+         return;
+      }
+      long lagMillis = 0;
+      for (CheckpointManager cm : new CheckpointManager[] {irCm, revCm, mlCm, dlCm}) {
+         lagMillis = Math.max(lagMillis, cm.getFreshnessTracker().getLagMillis());
+      }
+      if (!catchUp && lagMillis > catchUpLagMillis) {
+         logger.info("Index is " + (lagMillis / 1000) + " seconds behind the wiki; catching up");
+         catchUp = true;
+         pacing.setCatchUp(true);
+      }
+      else if (catchUp && lagMillis <= catchUpLagMillis) {
+         logger.info("Index has caught up to within " + (lagMillis / 1000) + " seconds of the wiki");
+         catchUp = false;
+         pacing.setCatchUp(false);
+      }
+   }
+
+   // the number of tasks to request given the time left and the pages still to index
+   private int getMaxTasks(int delayMillis, int pagesIndexed, int maxPages) {
+      int max = stopTimeMillis > 0 ? Math.max(1, Math.min(maxIndexTaskSize, (int)((stopTimeMillis - System.currentTimeMillis()) / delayMillis))) : maxIndexTaskSize;
+      if (maxPages > 0 && max + pagesIndexed > maxPages) {
+         max = Math.max(1, maxPages - pagesIndexed);
+      }
+      return max;
+   }
+
+   /**
+    * Requests the chunk of tasks following the current one in the background, starting from a look-ahead copy of the
+    * checkpoint moved past the current chunk, so the generator's own checkpoint moves only as tasks are indexed.
+    */
+   private class TaskPrefetch implements Callable<List<IndexTask>> {
+      private BaseTaskGenerator itg;
+      private CheckpointManager ahead;
+      private String startCheckpoint;
+      private int max;
+      private Future<List<IndexTask>> tasks;
+
+      public TaskPrefetch(BaseTaskGenerator itg, CheckpointManager cm, List<IndexTask> chunk, int max) throws SQLException {
+         this.itg = itg;
+         this.max = max;
+         ahead = cm.lookAhead();
+         for (IndexTask it : chunk) {
+            itg.updateCheckpoint(it, ahead);
+         }
+         startCheckpoint = ahead.getCheckpoint();
+         logger.info("  prefetching "+ max + " index tasks from " + itg.getClass().getSimpleName());
+         tasks = prefetcher.submit(this);
+      }
+
+      public List<IndexTask> call() throws Exception {
+         long startNanos = System.nanoTime();
+         List<IndexTask> result = itg.getTasks(ahead, max);
+         taskMetrics.record(startNanos, result.size(), HttpClientHelper.getLastResponseBytes());
+         return result;
+      }
+
+      public int getMax() {
+         return max;
+      }
+
+      /**
+       * Wait for the tasks. The current chunk has been indexed by now, so the generator's checkpoint is where
+       * the look-ahead started; if getting the tasks moved the look-ahead checkpoint (the all-pages generator
+       * rolling over), move the generator's checkpoint the same way.
+       */
+      public List<IndexTask> getTasks(CheckpointManager cm) throws IOException, SQLException, ParsingException {
+         List<IndexTask> result;
+         try {
+            result = tasks.get();
+         }
+         catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted prefetching tasks", e);
+         }
+         catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+               throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof SQLException) {
+               throw (SQLException)e.getCause();
+            }
+            else if (e.getCause() instanceof ParsingException) {
+               throw (ParsingException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException("Error prefetching tasks from "+itg.getClass().getSimpleName(), e.getCause());
+         }
+         if (!startCheckpoint.equals(ahead.getCheckpoint())) {
+            cm.updateCheckpoint(ahead.getCheckpoint(), ahead.getRevTimestamp());
+         }
+         return result;
+      }
+
+      public void cancel() {
+         tasks.cancel(false); // let a request that has started finish and release its connection
+      }
+   }
+
+   private boolean index(BaseTaskGenerator itg, CheckpointManager cm, int baseDelayMillis, int maxPages) throws IOException, SQLException, ParsingException, SolrServerException {
       List<IndexTask> indexTasks;
       Set<String> seenPageIds = new HashSet<String>();
-      List<IndexTask> indexBatch = new ArrayList<IndexTask>();
       int max;
       boolean keepIndexing = true;
       int pagesIndexed = 0;
-      if (delayMillis == 0) delayMillis = 1;
+      TaskPrefetch prefetch = null;
+      FreshnessTracker freshness = cm.getFreshnessTracker();
 
       do {
-         max = stopTimeMillis > 0 ? Math.max(1, Math.min(maxIndexTaskSize, (int)((stopTimeMillis - System.currentTimeMillis()) / delayMillis))) : maxIndexTaskSize;
-         if (maxPages > 0 && max + pagesIndexed > maxPages) {
-            max = Math.max(1, maxPages - pagesIndexed);
+         // the pacing controller scales the delay up or down depending on how the wiki and solr are keeping up
+         int delayMillis = pacing.getDelayMillis(baseDelayMillis);
+         if (prefetch != null) {
+            max = prefetch.getMax();
+            indexTasks = prefetch.getTasks(cm);
+            prefetch = null;
+         }
+         else {
+            max = getMaxTasks(delayMillis, pagesIndexed, maxPages);
+            logger.info("  requesting "+ max + " index tasks from " + itg.getClass().getSimpleName());
+            long startNanos = System.nanoTime();
+            indexTasks = itg.getTasks(cm, max);
+            taskMetrics.record(startNanos, indexTasks.size(), HttpClientHelper.getLastResponseBytes());
+         }
+         logger.info("  got "+ indexTasks.size() + " index tasks from " + itg.getClass().getSimpleName() + " starting with sequenceId="+(indexTasks.size() == 0 ? "" : indexTasks.get(0).getSequenceId()));
+         if (freshness != null) {
+            freshness.fetched(indexTasks.size());
+         }
+
+         // if there may be more, ask for them now so they're ready when we're done with these
+         if (prefetcher != null && indexTasks.size() == maxIndexTaskSize && (maxPages == 0 || pagesIndexed + indexTasks.size() < maxPages)) {
+            prefetch = new TaskPrefetch(itg, cm, indexTasks, getMaxTasks(delayMillis, pagesIndexed + indexTasks.size(), maxPages));
          }
-         logger.info("  requesting "+ max + " index tasks");
-         indexTasks = itg.getTasks(cm, max);
-         logger.info("  got "+ indexTasks.size() + " index tasks starting with sequenceId="+(indexTasks.size() == 0 ? "" : indexTasks.get(0).getSequenceId()));
 
          for (IndexTask it : indexTasks) {
             if (seenPageIds.contains(it.getPageId())) {
                // skip because we've already seen this page id from this generator
 //               logger.info("  already seen " + it.getPageId());
+               if (freshness != null) {
+                  freshness.skipped();
+               }
             }
-            else if (it.getRevId() > 0 && indexedRevisions.get(it.getPageId()) != null && indexedRevisions.get(it.getPageId()) >= it.getRevId()) {
+            else if (it.getRevId() > 0 && indexedRevisions.get(it.getPageId()) >= it.getRevId()) {
                // skip because we've already indexed this or a later revision
 //               logger.info("  already indexed " + it.getPageId());
+               if (freshness != null) {
+                  freshness.skipped();
+               }
             }
             else {
-               // enqueue this page for indexing
+               // enqueue this page for indexing; it's merged with any task for the page that another generator has queued
 //               logger.info("  enqueue " + it.getPageId());
-               indexBatch.add(it);
+               taskQueue.add(it, itg.skipsUnchangedPages());
+               if (freshness != null) {
+                  freshness.submitted(itg.getEventMillis(it));
+               }
             }
             seenPageIds.add(it.getPageId());
 
             // set the checkpoint
             itg.updateCheckpoint(it, cm);
 
-            if (indexBatch.size() >= indexBatchSize) {
-               // index the pages
-               long restartMillis = System.currentTimeMillis() + indexBatch.size() * delayMillis;
-               indexBatch(indexBatch);
-               indexBatch.clear();
+            // index the pages
+            checkCatchUp();
+            long startMillis = System.currentTimeMillis();
+            int batchSize = submitQueuedBatch(true);
+            if (batchSize > 0) {
+               delayMillis = pacing.getDelayMillis(baseDelayMillis);
+               long restartMillis = startMillis + batchSize * delayMillis;
 
                // wait between each batch
                long currTimeMillis = System.currentTimeMillis();
@@ -382,58 +877,188 @@ public class Indexer
 
       } while (keepIndexing && indexTasks.size() == maxIndexTaskSize && (maxPages == 0 || pagesIndexed < maxPages));
 
-      if (indexBatch.size() > 0) {
-         // index the pages
-         indexBatch(indexBatch);
+      if (prefetch != null) {
+         // we stopped early; the checkpoint stays where indexing stopped
+         prefetch.cancel();
       }
 
+      if (freshness != null) {
+         freshness.stopped();
+      }
+
+      // index the pages, including any this generator's tasks were merged into
+      submitQueuedTasks();
+      logger.info("  pacing " + pacing);
+
       return keepIndexing;
    }
 
+   private List<CheckpointManager.Snapshot> getCheckpointSnapshots() {
+      List<CheckpointManager.Snapshot> checkpoints = new ArrayList<CheckpointManager.Snapshot>();
+      checkpoints.add(irCm.snapshot());
+      checkpoints.add(revCm.snapshot());
+      checkpoints.add(mlCm.snapshot());
+      checkpoints.add(dlCm.snapshot());
+      checkpoints.add(apCm.snapshot());
+      return checkpoints;
+   }
+
+   /**
+    * Queue a commit behind the batches submitted so far, without waiting for it.
+    * The checkpoints are saved once solr has confirmed the commit.
+    */
+   private void requestCommit(String label, List<CheckpointManager.Snapshot> checkpoints) {
+      pipeline.submit(PageBatch.commitMarker(label, checkpoints));
+   }
+
+   /**
+    * Wait for the submitted batches and requested commits to finish
+    * @return false if the commits didn't finish in time
+    */
+   private boolean waitForCommits(int seconds) {
+      pipeline.flush();
+      boolean done = commitScheduler.waitForCommits(seconds * 1000L);
+      if (done) {
+         commitScheduler.checkFailure();
+      }
+      return done;
+   }
+
+   /**
+    * Re-index the pages indexed with the old values of title sort keys that have been renumbered.
+    * Re-indexing can renumber more keys, so repeat a few times at most.
+    */
+   private void reindexRenumberedPages() throws SolrServerException {
+      for (int pass = 0; pass < 3 && titleSortRebalancer != null && titleSortRebalancer.hasRenumberedValues(); pass++) {
+         // pages indexed with the old values may still be on their way to solr
+         submitQueuedTasks();
+         requestCommit("title sort", new ArrayList<CheckpointManager.Snapshot>());
+         if (!waitForCommits(commitTimeoutSeconds)) {
+            logger.warning("Commit didn't finish within " + commitTimeoutSeconds + " seconds; not re-indexing renumbered pages");
+            return;
+         }
+         List<String> pageIds = titleSortRebalancer.getRenumberedPageIds(solr);
+         logger.info("Re-indexing " + pageIds.size() + " pages with renumbered title sort values");
+         for (String pageId : pageIds) {
+            taskQueue.add(new IndexTask("titlesort", pageId, IndexTask.ACTION_UPDATE, 0, null), false);
+         }
+         submitQueuedTasks();
+      }
+   }
+
    public void commit() throws IOException, SQLException, SolrServerException
    {
       logger.info("Committing index");
-      commitWithTimeout(30);
+      // a generator that failed may have left tasks that its checkpoint has moved past
+      submitQueuedTasks();
+      requestCommit("checkpoints", getCheckpointSnapshots());
+      if (waitForCommits(commitTimeoutSeconds)) {
+         revisionsCommitted = true;
+      }
+      else {
+         // the commit keeps going in solr; the checkpoints are saved if it finishes before we exit, otherwise the next run redoes the work
+         logger.severe("Commit didn't finish within " + commitTimeoutSeconds + " seconds");
+      }
+   }
 
-      logger.info("Saving checkpoints");
-      irCm.saveCheckpoint();
-      revCm.saveCheckpoint();
-      mlCm.saveCheckpoint();
-      dlCm.saveCheckpoint();
-      apCm.saveCheckpoint();
+   private class GeneratorRun implements Callable<Boolean> {
+      private String label;
+      private BaseTaskGenerator itg;
+      private CheckpointManager cm;
+
+      public GeneratorRun(String label, BaseTaskGenerator itg, CheckpointManager cm) {
+         this.label = label;
+         this.itg = itg;
+         this.cm = cm;
+      }
+
+      public Boolean call() throws Exception {
+         if (!keepGenerating) {
+            return false;
+         }
+         logger.info("Indexing " + label);
+         boolean keepIndexing = index(itg, cm, foregroundDelayMillis, 0);
+         if (!keepIndexing) {
+            keepGenerating = false;
+         }
+         // commit in the background while the other generators run; only this generator's tasks are known to be
+         // submitted ahead of the commit, so only its checkpoint goes with it
+         requestCommit(label, Collections.singletonList(cm.snapshot()));
+         return keepIndexing;
+      }
    }
 
-   public void commitWithTimeout(int seconds)
-   {
-      ExecutorService executor = Executors.newCachedThreadPool();
-      Callable<Object> task = new Callable<Object>() {
-         public Object call() throws ExecutionException {
+   /**
+    * Run the generators on task_generator_threads threads. With one thread they run one after another in the order given.
+    *
+    * Generators lag behind the wiki by different amounts, so a delete from one generator can reach the pipeline after
+    * a later update for the same page from another. The pipeline keeps the order batches are submitted in, and
+    * fetchPages confirms each delete with the wiki before sending it, so each page ends up as the wiki had it
+    * when the last batch containing it was fetched.
+    * @return false if a generator ran out of time
+    */
+   private boolean runGenerators(List<GeneratorRun> runs) throws IOException, SQLException, ParsingException, SolrServerException {
+      // read the checkpoints up front so the generator threads don't share the database connection
+      for (GeneratorRun run : runs) {
+         run.cm.getCheckpoint();
+      }
+      keepGenerating = true;
+      ExecutorService generators = Executors.newFixedThreadPool(Math.max(1, Math.min(runs.size(), generatorThreads)), new ThreadFactory() {
+         private int cnt = 0;
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "indexer-generator-"+(++cnt));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      Throwable failure = null;
+      boolean doIndexing = true;
+      try {
+         List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+         for (GeneratorRun run : runs) {
+            results.add(generators.submit(run));
+         }
+         // wait for all of them, so a failed generator doesn't stop the others from reaching their checkpoints
+         for (Future<Boolean> result : results) {
             try {
-               return solr.commit();
-            } catch (IOException e) {
-               logger.info("ERROR IOException: " + e);
-               throw new ExecutionException(e);
-            } catch (SolrServerException e) {
-               logger.info("ERROR SolrServerException: " + e);
-               throw new ExecutionException(e);
+               if (!result.get()) {
+                  doIndexing = false;
+               }
+            }
+            catch (ExecutionException e) {
+               logger.severe("Task generator failed: " + e.getCause());
+               if (failure == null) {
+                  failure = e.getCause();
+               }
+            }
+            catch (InterruptedException e) {
+               throw new RuntimeException("Interrupted waiting for task generators", e);
             }
          }
-      };
-      Future<Object> future = executor.submit(task);
-      try {
-         Object result = future.get(seconds, TimeUnit.SECONDS);
-      } catch (TimeoutException e) {
-         logger.info("ERROR Commit timeout exception: " + e);
-         System.exit(1);
-      } catch (InterruptedException e) {
-         logger.info("ERROR Commit interrupted exception: " + e);
-         System.exit(1);
-      } catch (ExecutionException e) {
-         logger.info("ERROR Commit execution error: " + e);
-         System.exit(1);
-      } finally {
-         future.cancel(true); // may or may not desire this
       }
+      finally {
+         generators.shutdown();
+      }
+      logger.info("Task queue " + taskQueue);
+      if (failure instanceof IOException) {
+         throw (IOException)failure;
+      }
+      else if (failure instanceof SQLException) {
+         throw (SQLException)failure;
+      }
+      else if (failure instanceof ParsingException) {
+         throw (ParsingException)failure;
+      }
+      else if (failure instanceof SolrServerException) {
+         throw (SolrServerException)failure;
+      }
+      else if (failure instanceof RuntimeException) {
+         throw (RuntimeException)failure;
+      }
+      else if (failure != null) {
+         throw new RuntimeException("Task generator failed: " + failure, failure);
+      }
+      return doIndexing;
    }
 
    public void indexChanges() throws IOException, SQLException, IllegalAccessException, InstantiationException, ClassNotFoundException, ParsingException, SolrServerException {
@@ -443,45 +1068,41 @@ public class Indexer
          boolean doIndexing = true;
          indexingStarted = true;
 
-         // the tasks need to be done in this order
-         // index renames
-         if (doIndexing) {
-            logger.info("Indexing renames");
-            doIndexing = index(new MoveLogTaskGenerator(wikiClient, wikiHostname, memcache), mlCm, foregroundDelayMillis, 0);
-         }
-         // index index-requests
-         if (doIndexing) {
-            logger.info("Indexing requests");
-            doIndexing = index(new IndexRequestTaskGenerator(wikiClient, wikiHostname), irCm, foregroundDelayMillis, 0);
-         }
-         // index new reversions
-         if (doIndexing) {
-            logger.info("Indexing revisions");
-            doIndexing = index(new RevisionTaskGenerator(wikiClient, wikiHostname), revCm, foregroundDelayMillis, 0);
-         }
-         // index deletes and undeletes
-         if (doIndexing) {
-            logger.info("Indexing deletes and undeletes");
-            doIndexing = index(new DeleteLogTaskGenerator(wikiClient, wikiHostname), dlCm, foregroundDelayMillis, 0);
-         }
+         // the change generators fetch and index concurrently; see runGenerators for how each page's updates stay in order
+         List<GeneratorRun> runs = new ArrayList<GeneratorRun>();
+         runs.add(new GeneratorRun("renames", new MoveLogTaskGenerator(wikiClient, wikiHostname, memcache), mlCm));
+         runs.add(new GeneratorRun("requests", new IndexRequestTaskGenerator(wikiClient, wikiHostname), irCm));
+         runs.add(new GeneratorRun("revisions", new RevisionTaskGenerator(wikiClient, wikiHostname), revCm));
+         runs.add(new GeneratorRun("deletes and undeletes", new DeleteLogTaskGenerator(wikiClient, wikiHostname), dlCm));
+         doIndexing = runGenerators(runs);
          // re-index all pages if still time
-         if (doIndexing && maxBackgroundPages > 0) {
+         if (doIndexing && maxBackgroundPages > 0 && catchUp) {
+            logger.info("Skipping indexing all pages while catching up");
+         }
+         else if (doIndexing && maxBackgroundPages > 0) {
             logger.info("Indexing all pages:" + maxBackgroundPages);
             // index may return false because maxBackgroundPages have been indexed
             doIndexing = index(new AllPagesTaskGenerator(wikiClient, wikiHostname), apCm, backgroundDelayMillis, maxBackgroundPages);
          }
+         reindexRenumberedPages();
       }
       finally {
-         if (indexingStarted) {
-            commit(); // commit the docs we've sent even if this client crashed
+         try {
+            if (indexingStarted) {
+               commit(); // commit the docs we've sent even if this client crashed
+            }
+         }
+         finally {
+            cleanup();
          }
-         cleanup();
          logger.info("Deleting inprocess file");
       }
    }
 
    public void indexAll(String startingPageId) throws IOException, SolrServerException, ClassNotFoundException, SQLException, InstantiationException, IllegalAccessException, ParsingException {
       boolean commitNeeded = false;
+      // the index may be a new bulk-built core, or the schema may have changed, so the hashes say nothing about it
+      sendUnchangedDocs = true;
       try {
          startIndexing();
          // index everything
@@ -500,34 +1121,189 @@ public class Indexer
                if (indexBatch.size() >= indexBatchSize) {
                   // index the pages
                   commitNeeded = true;
-                  indexBatch(indexBatch);
+                  indexBatch(indexBatch, false);
                   indexBatch.clear();
                }
             }
-            commitWithTimeout(60);
-            commitNeeded = false;
-            logger.info("committed index page_id="+apCm.getCheckpoint());
+            if (bulkBuilder == null) { // a bulk build is committed once, at the end
+               requestCommit("page_id="+apCm.getCheckpoint(), new ArrayList<CheckpointManager.Snapshot>());
+               commitNeeded = false;
+            }
          } while (!aptg.isAtEnd());
          if (indexBatch.size() > 0) {
             // index the pages
             commitNeeded = true;
-            indexBatch(indexBatch);
+            indexBatch(indexBatch, false);
+         }
+         // pages indexed earlier in the run may have the old values of keys renumbered since
+         reindexRenumberedPages();
+         if (bulkBuilder != null) {
+            requestCommit("bulk index", new ArrayList<CheckpointManager.Snapshot>());
+            commitNeeded = false;
+            waitForBulkCommit();
+            revisionsCommitted = finishBulkBuild();
          }
       }
       finally {
-         if (commitNeeded) {
-            commitWithTimeout(60);
-            logger.info("committed index page_id="+apCm.getCheckpoint());
+         try {
+            if (commitNeeded || bulkBuilder == null) {
+               requestCommit("page_id="+apCm.getCheckpoint(), new ArrayList<CheckpointManager.Snapshot>());
+               if (waitForCommits(commitTimeoutSeconds)) {
+                  revisionsCommitted = (bulkBuilder == null);
+               }
+               else {
+                  logger.severe("Commit didn't finish within " + commitTimeoutSeconds + " seconds");
+               }
+            }
+         }
+         finally {
+            cleanup();
          }
-         cleanup();
       }
       logger.info("IndexAll complete");
    }
 
+   // the whole rebuild depends on this commit, so wait for it however long it takes
+   private void waitForBulkCommit() {
+      while (!waitForCommits(commitTimeoutSeconds)) {
+         logger.info("Waiting for commit");
+      }
+   }
+
+   // optimize a bulk-built index and install it in the live data directory if one is configured
+   // returns true unless the index was built but not installed
+   private boolean finishBulkBuild() throws IOException, SolrServerException {
+      if (bulkBuilder != null) {
+         bulkBuilder.finish();
+         String liveDataDir = properties.getProperty("bulk_install_data_dir", "");
+         if (liveDataDir.length() > 0) {
+            bulkBuilder.install(liveDataDir);
+         }
+         else {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // reads pages from a dump and hands them to the pipeline a batch at a time
+   private class DumpPageParser implements WikiRevisionParser {
+      private PageBatch batch = null;
+      private int pages = 0;
+      private int maxRevId = 0;
+      private String maxRevTimestamp = "";
+
+      public void parse(String pageId, String title, int revId, String revTimestamp, String text) {
+         String namespace = Utils.splitNamespaceTitle(title)[0];
+         int ns = namespace.length() == 0 ? Utils.NS_MAIN : Utils.NAMESPACE_MAP.get(namespace);
+         // dump timestamps look like 2008-04-28T12:00:00Z; the wiki returns 20080428120000
+         String timestamp = revTimestamp.replaceAll("[^0-9]", "");
+
+         if (batch == null) {
+            batch = new PageBatch(new ArrayList<IndexTask>());
+         }
+         // the dump doesn't have popularity, watchers or trees; the background reindex of all pages fills them in later
+         convertPage(batch, new PageContents(pageId, ns, title, revId, timestamp, 0, text));
+         if (batch.getPages().size() >= indexBatchSize) {
+            finish();
+         }
+
+         pages++;
+         if (revId > maxRevId) {
+            maxRevId = revId;
+         }
+         if (timestamp.compareTo(maxRevTimestamp) > 0) {
+            maxRevTimestamp = timestamp;
+         }
+      }
+
+      public void finish() {
+         if (batch != null) {
+            pipeline.submit(batch);
+            batch = null;
+         }
+      }
+   }
+
+   public void indexDump(String filename) throws IOException, SolrServerException, ClassNotFoundException, SQLException, InstantiationException, IllegalAccessException, ParsingException {
+      boolean indexingStarted = false;
+      boolean committed = false;
+      if (bulkDataDir == null) {
+         // the live core would be empty or half-built for hours, and any other commit to it, like the next
+         // incremental run's, would publish that to searchers
+         throw new IllegalStateException("Indexing a dump needs a bulk data directory (-b); it can't rebuild the live index in place");
+      }
+      sendUnchangedDocs = true;
+      try {
+         startIndexing();
+         indexingStarted = true;
+         // the revisions in the index will be the ones in the dump
+         indexedRevisions.clear();
+         indexedHashes.clear();
+
+         // replace the whole index; the bulk-built core isn't seen by searchers until it's installed
+         logger.info("Indexing dump " + filename);
+         solr.deleteByQuery("*:*");
+
+         DumpPageParser dumpParser = new DumpPageParser();
+         WikiReader wikiReader = new WikiReader();
+         wikiReader.setSkipRedirects(false); // the page indexers decide what to do with redirects
+         wikiReader.addWikiRevisionParser(dumpParser);
+         InputStream in = new FileInputStream(filename);
+         if (filename.endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+         }
+         try {
+            wikiReader.read(in);
+         }
+         finally {
+            in.close();
+         }
+         dumpParser.finish();
+         // the renumbered pages are read from the wiki, so they may be newer than the dump; incremental indexing
+         // from the dump's checkpoints would bring them up to date anyway
+         reindexRenumberedPages();
+
+         logger.info("Committing index pages=" + dumpParser.pages);
+         requestCommit("dump", new ArrayList<CheckpointManager.Snapshot>());
+         waitForBulkCommit();
+         committed = true;
+         // a bulk-built index only matches the revision map once it has been installed
+         revisionsCommitted = finishBulkBuild();
+
+         // resume incremental indexing from the point the dump was taken
+         // move and delete log entries at the dump's last timestamp may be read again, which is harmless
+         logger.info("Saving checkpoints rev_id=" + dumpParser.maxRevId + " timestamp=" + dumpParser.maxRevTimestamp);
+         revCm.updateCheckpoint(Integer.toString(dumpParser.maxRevId), dumpParser.maxRevTimestamp);
+         mlCm.updateCheckpoint(dumpParser.maxRevTimestamp, dumpParser.maxRevTimestamp);
+         dlCm.updateCheckpoint(dumpParser.maxRevTimestamp, dumpParser.maxRevTimestamp);
+         apCm.updateCheckpoint("0", dumpParser.maxRevTimestamp);
+         revCm.saveCheckpoint();
+         mlCm.saveCheckpoint();
+         dlCm.saveCheckpoint();
+         apCm.saveCheckpoint();
+      }
+      finally {
+         try {
+            if (indexingStarted && !committed) {
+               // discard the partly built index instead of leaving it for a later commit to pick up
+               logger.severe("Dump indexing failed; rolling back");
+               solr.rollback();
+            }
+         }
+         finally {
+            cleanup();
+         }
+      }
+      logger.info("IndexDump complete");
+   }
+
    public static void main(String[] args) throws ParseException, IOException, IllegalAccessException, SQLException, ParsingException, ClassNotFoundException, InstantiationException, SolrServerException {
       Options opt = new Options();
       opt.addOption("p", true, "java .properties file");
       opt.addOption("r", true, "reindex starting page Id; if set, re-index everything starting at starting page Id; set mergeFactor in solrconfig.xml to a high number like 20 for this option");
+      opt.addOption("d", true, "rebuild the whole index from a MediaWiki pages xml dump (optionally .gz) and set the checkpoints to the end of the dump; requires -b");
+      opt.addOption("b", true, "with -d or -r, build the index in-process in this data directory instead of sending it to index_url");
       opt.addOption("h", false, "Print out help information");
 
       BasicParser parser = new BasicParser();
@@ -542,7 +1318,13 @@ public class Indexer
       Properties properties = new Properties();
       properties.load(new FileInputStream(cl.getOptionValue("p")));
       Indexer indexer = new Indexer(properties);
-      if (cl.hasOption("r")) {
+      if (cl.hasOption("b")) {
+         indexer.setBulkDataDir(cl.getOptionValue("b"));
+      }
+      if (cl.hasOption("d")) {
+         indexer.indexDump(cl.getOptionValue("d"));
+      }
+      else if (cl.hasOption("r")) {
          indexer.indexAll(cl.getOptionValue("r"));
       }
       else {
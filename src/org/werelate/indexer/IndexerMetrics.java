@@ -0,0 +1,113 @@
+package org.werelate.indexer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The stage, cache and freshness metrics for the indexer, shared by everything in the process and registered with
+ * the platform MBean server under org.werelate.indexer:type=Stage,name=..., type=Cache,name=... and type=Freshness,name=...
+ * so they can be watched with jconsole while a run is going.
+ */
+public class IndexerMetrics
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+   private static final String DOMAIN = "org.werelate.indexer";
+
+   private static final Map<String,StageMetrics> stages = new LinkedHashMap<String,StageMetrics>();
+   private static final Map<String,CacheMetrics> caches = new LinkedHashMap<String,CacheMetrics>();
+   private static final Map<String,FreshnessTracker> freshness = new LinkedHashMap<String,FreshnessTracker>();
+   private static long startMillis = System.currentTimeMillis();
+
+   private IndexerMetrics() {}
+
+   private static void register(Object mbean, String type, String name) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+         if (!server.isRegistered(objectName)) {
+            server.registerMBean(mbean, objectName);
+         }
+      }
+      catch (Exception e) {
+         logger.warning("Unable to register " + type + " metrics " + name + " with JMX: " + e);
+      }
+   }
+
+   /**
+    * The metrics for the named stage, created the first time they're asked for
+    */
+   public static synchronized StageMetrics stage(String name) {
+      StageMetrics stage = stages.get(name);
+      if (stage == null) {
+         stage = new StageMetrics(name);
+         stages.put(name, stage);
+         register(stage, "Stage", name);
+      }
+      return stage;
+   }
+
+   /**
+    * The metrics for the named cache, created the first time they're asked for
+    */
+   public static synchronized CacheMetrics cache(String name) {
+      CacheMetrics cache = caches.get(name);
+      if (cache == null) {
+         cache = new CacheMetrics(name);
+         caches.put(name, cache);
+         register(cache, "Cache", name);
+      }
+      return cache;
+   }
+
+   /**
+    * The freshness tracker for the named task generator, created the first time it's asked for
+    */
+   public static synchronized FreshnessTracker freshness(String name) {
+      FreshnessTracker tracker = freshness.get(name);
+      if (tracker == null) {
+         tracker = new FreshnessTracker(name);
+         freshness.put(name, tracker);
+         register(tracker, "Freshness", name);
+      }
+      return tracker;
+   }
+
+   /**
+    * Start counting afresh, at the start of a run
+    */
+   public static synchronized void reset() {
+      startMillis = System.currentTimeMillis();
+      for (StageMetrics stage : stages.values()) {
+         stage.reset();
+      }
+      for (CacheMetrics cache : caches.values()) {
+         cache.reset();
+      }
+   }
+
+   /**
+    * One line for each stage and cache that has been used since the last reset
+    */
+   public static synchronized String summary() {
+      StringBuilder buf = new StringBuilder();
+      buf.append("Run took ").append((System.currentTimeMillis() - startMillis) / 1000).append(" seconds");
+      for (StageMetrics stage : stages.values()) {
+         if (stage.getCount() > 0) {
+            buf.append("\n  ").append(stage);
+         }
+      }
+      for (CacheMetrics cache : caches.values()) {
+         if (cache.getHits() + cache.getMisses() > 0) {
+            buf.append("\n  ").append(cache);
+         }
+      }
+      for (FreshnessTracker tracker : freshness.values()) {
+         buf.append("\n  ").append(tracker);
+      }
+      return buf.toString();
+   }
+}
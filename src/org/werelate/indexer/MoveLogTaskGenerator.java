@@ -79,4 +79,8 @@ public class MoveLogTaskGenerator extends BaseTaskGenerator
    {
       cm.updateCheckpoint(it.getSequenceId()+"/"+it.getPageId());
    }
+
+   public long getEventMillis(IndexTask it) {
+      return parseWikiTimestamp(it.getSequenceId());
+   }
 }
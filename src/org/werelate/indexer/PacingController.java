@@ -0,0 +1,119 @@
+package org.werelate.indexer;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Decides how fast to index, based on how the wiki and solr are responding.
+ *
+ * The fetch and solr stages report how long their requests take, and errors (retries) are reported as they happen.
+ * When the smoothed latency of either backend goes above its target, or there are errors, the delay between pages
+ * is doubled and the batch size halved. When both backends are comfortably below target, the delay is brought down
+ * and the batch size raised a step at a time. The delay is a multiple of the generator's configured delay,
+ * so background indexing stays gentler than foreground indexing.
+ */
+public class PacingController
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+   private static final double ALPHA = 0.2;
+   // give the averages time to reflect a back-off before backing off again
+   private static final int BACKOFF_OBSERVATIONS = 3;
+
+   private boolean adaptive;
+   private double minFactor;
+   private double maxFactor;
+   private int minBatchSize;
+   private int maxBatchSize;
+   private double targetFetchMillis;
+   private double targetSolrMillis;
+
+   private double factor;
+   private int batchSize;
+   private double fetchMillis;
+   private double solrMillis;
+   private int errors;
+   private int observations;
+   private boolean catchUp;
+
+   public PacingController(Properties properties, int batchSize) {
+      this.adaptive = !"fixed".equals(properties.getProperty("pacing", "adaptive"));
+      this.minFactor = Double.parseDouble(properties.getProperty("pacing_min_delay_factor", "0.1"));
+      this.maxFactor = Double.parseDouble(properties.getProperty("pacing_max_delay_factor", "10"));
+      this.minBatchSize = Integer.parseInt(properties.getProperty("pacing_min_batch_size", "10"));
+      this.maxBatchSize = Integer.parseInt(properties.getProperty("pacing_max_batch_size", Integer.toString(batchSize * 4)));
+      this.targetFetchMillis = Double.parseDouble(properties.getProperty("pacing_target_fetch_millis", "2000"));
+      this.targetSolrMillis = Double.parseDouble(properties.getProperty("pacing_target_solr_millis", "2000"));
+      this.factor = 1.0;
+      this.batchSize = batchSize;
+      this.fetchMillis = 0;
+      this.solrMillis = 0;
+      this.errors = 0;
+      this.observations = 0;
+      this.catchUp = false;
+   }
+
+   /**
+    * Milliseconds to wait per page, given the generator's configured delay
+    */
+   public synchronized int getDelayMillis(int baseDelayMillis) {
+      return Math.max(1, (int)Math.round(baseDelayMillis * factor));
+   }
+
+   public synchronized int getBatchSize() {
+      return catchUp ? Math.max(batchSize, maxBatchSize) : batchSize;
+   }
+
+   /**
+    * While catching up, use the largest batches allowed
+    */
+   public synchronized void setCatchUp(boolean catchUp) {
+      this.catchUp = catchUp;
+   }
+
+   public synchronized void fetched(long millis) {
+      fetchMillis = fetchMillis == 0 ? millis : ALPHA * millis + (1 - ALPHA) * fetchMillis;
+      adjust();
+   }
+
+   public synchronized void sentToSolr(long millis) {
+      solrMillis = solrMillis == 0 ? millis : ALPHA * millis + (1 - ALPHA) * solrMillis;
+      adjust();
+   }
+
+   public synchronized void error() {
+      errors++;
+      adjust();
+   }
+
+   private void adjust() {
+      if (!adaptive) {
+         return;
+      }
+      double oldFactor = factor;
+      int oldBatchSize = batchSize;
+      observations++;
+      if (errors > 0 || fetchMillis > targetFetchMillis || solrMillis > targetSolrMillis) {
+         // back off quickly
+         if (errors > 0 || observations >= BACKOFF_OBSERVATIONS) {
+            factor = Math.min(maxFactor, factor * 2);
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            errors = 0;
+            observations = 0;
+         }
+      }
+      else if (fetchMillis < targetFetchMillis / 2 && solrMillis < targetSolrMillis / 2) {
+         // speed up slowly
+         factor = Math.max(minFactor, factor - 0.1);
+         batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 10));
+      }
+      if (factor != oldFactor || batchSize != oldBatchSize) {
+         logger.fine("Pacing delay factor=" + factor + " batch size=" + batchSize +
+                     " fetch=" + Math.round(fetchMillis) + "ms solr=" + Math.round(solrMillis) + "ms");
+      }
+   }
+
+   public synchronized String toString() {
+      return "delay factor=" + factor + " batch size=" + batchSize +
+             " fetch=" + Math.round(fetchMillis) + "ms solr=" + Math.round(solrMillis) + "ms";
+   }
+}
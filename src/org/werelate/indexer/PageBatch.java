@@ -0,0 +1,152 @@
+package org.werelate.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * One batch of index tasks as it moves through the IndexPipeline: the tasks, the page contents fetched
+ * for them, and the documents and deletes that will be sent to solr.
+ */
+public class PageBatch
+{
+   private List<IndexTask> tasks;
+   private List<PageContents> pages;
+   private List<Future<SolrInputDocument>> conversions;
+   private List<SolrInputDocument> docs;
+   private List<String> deleteIds;
+   private Map<String,Integer> revisions;
+   private Map<String,Long> docHashes;
+   private long conversionWaitNanos;
+   private boolean failed;
+   private Set<String> skipUnchanged;
+   private String commitLabel;
+   private List<CheckpointManager.Snapshot> commitCheckpoints;
+
+   public PageBatch(List<IndexTask> tasks) {
+      this.tasks = tasks;
+      this.pages = new ArrayList<PageContents>();
+      this.conversions = new ArrayList<Future<SolrInputDocument>>();
+      this.docs = new ArrayList<SolrInputDocument>();
+      this.deleteIds = new ArrayList<String>();
+      this.revisions = new HashMap<String,Integer>();
+      this.docHashes = new HashMap<String,Long>();
+      this.conversionWaitNanos = 0;
+      this.failed = false;
+      this.skipUnchanged = new HashSet<String>();
+      this.commitLabel = null;
+      this.commitCheckpoints = null;
+   }
+
+   /**
+    * A batch with no tasks that asks for a commit once the batches ahead of it have been sent to solr
+    */
+   public static PageBatch commitMarker(String label, List<CheckpointManager.Snapshot> checkpoints) {
+      PageBatch batch = new PageBatch(new ArrayList<IndexTask>());
+      batch.commitLabel = label;
+      batch.commitCheckpoints = checkpoints;
+      return batch;
+   }
+
+   public boolean isCommitMarker() {
+      return commitLabel != null;
+   }
+
+   public String getCommitLabel() {
+      return commitLabel;
+   }
+
+   public List<CheckpointManager.Snapshot> getCommitCheckpoints() {
+      return commitCheckpoints;
+   }
+
+   public List<IndexTask> getTasks()
+   {
+      return tasks;
+   }
+
+   public String getFirstSequenceId() {
+      return (tasks == null || tasks.size() == 0 ? "" : tasks.get(0).getSequenceId());
+   }
+
+   public List<PageContents> getPages()
+   {
+      return pages;
+   }
+
+   /**
+    * Documents being converted for the pages, in the same order as getPages
+    */
+   public List<Future<SolrInputDocument>> getConversions()
+   {
+      return conversions;
+   }
+
+   public List<SolrInputDocument> getDocs()
+   {
+      return docs;
+   }
+
+   public List<String> getDeleteIds()
+   {
+      return deleteIds;
+   }
+
+   /**
+    * The revision indexed for each page in the batch, or 0 for pages removed from the index
+    */
+   public Map<String,Integer> getRevisions()
+   {
+      return revisions;
+   }
+
+   /**
+    * Hashes of the documents being sent, by page id
+    */
+   public Map<String,Long> getDocHashes()
+   {
+      return docHashes;
+   }
+
+   /**
+    * Time spent waiting for the conversion workers while the pages were being read
+    */
+   public long getConversionWaitNanos()
+   {
+      return conversionWaitNanos;
+   }
+
+   public void addConversionWaitNanos(long nanos)
+   {
+      conversionWaitNanos += nanos;
+   }
+
+   /**
+    * Returns true if the page can be skipped when its revision is already in the index
+    */
+   public boolean isSkipUnchanged(String pageId)
+   {
+      return skipUnchanged.contains(pageId);
+   }
+
+   public void setSkipUnchanged(String pageId)
+   {
+      skipUnchanged.add(pageId);
+   }
+
+   public boolean isFailed()
+   {
+      return failed;
+   }
+
+   public void setFailed(boolean failed)
+   {
+      this.failed = failed;
+   }
+}
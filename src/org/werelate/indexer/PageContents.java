@@ -0,0 +1,85 @@
+package org.werelate.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contents of one page as returned by wfGetPageIndexContents
+ */
+public class PageContents
+{
+   private String pageId;
+   private int namespace;
+   private String fullTitle;
+   private int revId;
+   private String revTimestamp;
+   private int popularity;
+   private String contents;
+   private List<String> users;
+   private List<String> trees;
+
+   public PageContents(String pageId, int namespace, String fullTitle, int revId, String revTimestamp, int popularity, String contents) {
+      this.pageId = pageId;
+      this.namespace = namespace;
+      this.fullTitle = fullTitle;
+      this.revId = revId;
+      this.revTimestamp = revTimestamp;
+      this.popularity = popularity;
+      this.contents = contents;
+      this.users = new ArrayList<String>();
+      this.trees = new ArrayList<String>();
+   }
+
+   public String getPageId()
+   {
+      return pageId;
+   }
+
+   public int getNamespace()
+   {
+      return namespace;
+   }
+
+   public String getFullTitle()
+   {
+      return fullTitle;
+   }
+
+   public int getRevId()
+   {
+      return revId;
+   }
+
+   public String getRevTimestamp()
+   {
+      return revTimestamp;
+   }
+
+   public int getPopularity()
+   {
+      return popularity;
+   }
+
+   public String getContents()
+   {
+      return contents;
+   }
+
+   /**
+    * Drop the page text once it has been converted, so it isn't held until the rest of the batch is done
+    */
+   public void releaseContents()
+   {
+      contents = null;
+   }
+
+   public List<String> getUsers()
+   {
+      return users;
+   }
+
+   public List<String> getTrees()
+   {
+      return trees;
+   }
+}
@@ -0,0 +1,78 @@
+package org.werelate.indexer;
+
+import nu.xom.Element;
+import nu.xom.Elements;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import org.werelate.util.HttpClientHelper;
+import org.werelate.util.Utils;
+
+import java.util.logging.Logger;
+
+/**
+ * Reads a wfGetPageIndexContents response as it is parsed.
+ * Each page is handed to the PageHandler as soon as its closing tag is read, and is then dropped from the tree,
+ * so memory use depends on the largest page rather than on the whole response.
+ */
+public class PageContentsReader extends NodeFactory
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   public interface PageHandler {
+      public void handle(PageContents page);
+   }
+
+   private static final Nodes EMPTY = new Nodes();
+
+   private PageHandler handler;
+   private boolean statusChecked;
+
+   public PageContentsReader(PageHandler handler) {
+      this.handler = handler;
+      this.statusChecked = false;
+   }
+
+   public Nodes finishMakingElement(Element element) {
+      if (element.getLocalName().equals("page") && element.getParent() instanceof Element) {
+         // the root's attributes are read before any of its children
+         if (!statusChecked) {
+            Element root = (Element)element.getParent();
+            if (Integer.parseInt(root.getAttributeValue("status")) != HttpClientHelper.STATUS_OK) {
+               throw new RuntimeException("Unexpected status="+root.getAttributeValue("status"));
+            }
+            statusChecked = true;
+         }
+         PageContents page = getPageContents(element);
+         if (page != null) {
+            handler.handle(page);
+         }
+         return EMPTY;
+      }
+      return super.finishMakingElement(element);
+   }
+
+   public static PageContents getPageContents(Element page) {
+      String pageId = page.getAttributeValue("page_id");
+      String fullTitle = page.getAttributeValue("title");
+      if (Utils.isEmpty(fullTitle)) {
+         logger.warning("Empty page="+pageId);
+         return null;
+      }
+      int ns = Integer.parseInt(page.getAttributeValue("namespace"));
+      int popularity = 0;
+      String popularityString = page.getAttributeValue("popularity");
+      if (popularityString.length() > 0) popularity = Integer.parseInt(popularityString);
+      PageContents pc = new PageContents(pageId, ns, fullTitle, Integer.parseInt(page.getAttributeValue("rev_id")),
+                                         page.getAttributeValue("rev_timestamp"), popularity,
+                                         page.getFirstChildElement("contents").getValue());
+      Elements users = page.getChildElements("user");
+      for (int u=0; u < users.size(); u++) {
+         pc.getUsers().add(users.get(u).getValue());
+      }
+      Elements trees = page.getChildElements("tree");
+      for (int t=0; t < trees.size(); t++) {
+         pc.getTrees().add(trees.get(t).getValue());
+      }
+      return pc;
+   }
+}
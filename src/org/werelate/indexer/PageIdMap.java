@@ -0,0 +1,141 @@
+package org.werelate.indexer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * A long value for each page id, kept in a memory-mapped file so it survives between runs.
+ * Page ids are small dense integers, so the value for a page is stored at slot page id, 8 bytes per slot,
+ * and the file grows as larger page ids are seen. A value of 0 means no entry.
+ *
+ * The header records a version and whether the map has been closed cleanly. A map that wasn't closed cleanly
+ * (the indexer crashed or its last commit didn't go through) or that has a different version is cleared when opened,
+ * so entries are only trusted if they were saved along with a successful commit.
+ */
+public class PageIdMap
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   private static final int MAGIC = 0x50494d31; // PIM1
+   private static final int HEADER_SIZE = 16;
+   private static final int SLOT_SIZE = 8;
+   private static final int MIN_SLOTS = 1 << 20;
+   private static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+   private String filename;
+   private int version;
+   private RandomAccessFile file;
+   private FileChannel channel;
+   private MappedByteBuffer buf;
+   private int slots;
+
+   /**
+    * Open the map in the specified file, clearing it if it wasn't closed cleanly or was written with a different version
+    */
+   public PageIdMap(String filename, int version) throws IOException {
+      this.filename = filename;
+      this.version = version;
+      file = new RandomAccessFile(filename, "rw");
+      channel = file.getChannel();
+      boolean valid = false;
+      if (file.length() >= HEADER_SIZE) {
+         map((int)Math.max(0, (file.length() - HEADER_SIZE) / SLOT_SIZE));
+         if (buf.getInt(0) != MAGIC) {
+            logger.warning("Not a page id map: " + filename);
+         }
+         else if (buf.getInt(4) != version) {
+            logger.info("Page id map " + filename + " has version " + buf.getInt(4) + "; expected " + version);
+         }
+         else if (buf.getInt(8) != 0) {
+            logger.warning("Page id map " + filename + " wasn't closed cleanly");
+         }
+         else {
+            valid = true;
+         }
+      }
+      if (!valid) {
+         logger.info("Clearing page id map " + filename);
+         file.setLength(0);
+         map(MIN_SLOTS);
+         buf.putInt(0, MAGIC);
+         buf.putInt(4, version);
+      }
+      // mark dirty until closed cleanly
+      buf.putInt(8, 1);
+      buf.force();
+   }
+
+   private void map(int newSlots) throws IOException {
+      buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)newSlots * SLOT_SIZE);
+      slots = newSlots;
+   }
+
+   private static int toSlot(String pageId) {
+      try {
+         return Integer.parseInt(pageId);
+      }
+      catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   public synchronized long get(String pageId) {
+      int slot = toSlot(pageId);
+      if (slot < 0 || slot >= slots) {
+         return 0;
+      }
+      return buf.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+   }
+
+   public synchronized void put(String pageId, long value) {
+      int slot = toSlot(pageId);
+      if (slot < 0 || slot >= MAX_SLOTS) {
+         return;
+      }
+      if (slot >= slots) {
+         try {
+            map((int)Math.min(MAX_SLOTS, Math.max(slot + 1L, slots * 2L)));
+         }
+         catch (IOException e) {
+            throw new RuntimeException("Unable to grow page id map " + filename + ": " + e, e);
+         }
+      }
+      buf.putLong(HEADER_SIZE + slot * SLOT_SIZE, value);
+   }
+
+   public void remove(String pageId) {
+      if (get(pageId) != 0) {
+         put(pageId, 0);
+      }
+   }
+
+   /**
+    * Remove every entry
+    */
+   public synchronized void clear() {
+      for (int slot = 0; slot < slots; slot++) {
+         buf.putLong(HEADER_SIZE + slot * SLOT_SIZE, 0);
+      }
+   }
+
+   /**
+    * Write the map to disk
+    * @param clean true if everything in the map has been committed to the index, so the map can be trusted next time
+    */
+   public synchronized void close(boolean clean) throws IOException {
+      if (buf == null) {
+         return;
+      }
+      buf.force();
+      if (clean) {
+         buf.putInt(8, 0);
+         buf.force();
+      }
+      buf = null;
+      channel.close();
+      file.close();
+   }
+}
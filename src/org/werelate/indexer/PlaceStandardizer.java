@@ -39,6 +39,10 @@ public class PlaceStandardizer {
 //      PLACE_FIELDS.add(Utils.FLD_WIFE_DEATH_PLACE);
    }
    private static final int MAX_REDIR_LOOKUPS = 50;
+   private static final CacheMetrics redirectCache = IndexerMetrics.cache("place.redirect");
+   private static final StageMetrics memcacheMetrics = IndexerMetrics.stage("place.memcache");
+   private static final StageMetrics redirectMetrics = IndexerMetrics.stage("place.redirects");
+   private static final StageMetrics placeIndexMetrics = IndexerMetrics.stage("place.index");
 
    private String indexUrl;
    private String wikiHostname;
@@ -55,11 +59,12 @@ public class PlaceStandardizer {
    }
 
    // TODO need to move memcache lookup to wiki, and delete memcache upon place rename in hooks
-   private Map<String,String> getFinalRedirectTargets(Set<String> places) throws IOException, ParsingException {
+   protected Map<String,String> getFinalRedirectTargets(Set<String> places) throws IOException, ParsingException {
       Map<String,String> targets = new HashMap<String,String>();
       Set<String> titles = new HashSet<String>();
 
       // find places in cache
+      long startNanos = System.nanoTime();
       for (String place : places) {
          String title = "Place:"+place;
          String key = Utils.getMemcacheKey(MC_PREFIX, title);
@@ -75,11 +80,16 @@ public class PlaceStandardizer {
                target = place;
             }
             targets.put(place, target);
+            redirectCache.hit();
          }
          else {
             titles.add(title);
+            redirectCache.miss();
          }
       }
+      if (places.size() > 0) {
+         memcacheMetrics.record(startNanos, places.size(), 0);
+      }
 
       while (titles.size() > 0) {
          // send up to MAX_REDIR_LOOKUPS at a time
@@ -96,6 +106,7 @@ public class PlaceStandardizer {
          }
 
          GetMethod m = new GetMethod(Utils.getWikiAjaxUrl(wikiHostname, "wfGetPageRedirects", sending));
+         startNanos = System.nanoTime();
          try
          {
             wikiClient.executeHttpMethod(m);
@@ -104,6 +115,7 @@ public class PlaceStandardizer {
                throw new RuntimeException("Unexpected http status code="+statusCode+" for titles="+Utils.join("|", sending));
             }
             String response=HttpClientHelper.getResponse(m);
+            redirectMetrics.record(startNanos, sending.size(), HttpClientHelper.getLastResponseBytes());
             Elements pages = null;
             if (Utils.isEmpty(response)) {
                logger.warning("Unexpected empty response for pages="+Utils.join("|", sending));
@@ -191,6 +203,65 @@ public class PlaceStandardizer {
       }
    }
 
+   /**
+    * Call the index server to get the tokens to index for each place
+    */
+   protected Map<String,String[]> getPlaceIndexTokens(Set<String> places) throws IOException, ParsingException {
+      Map<String,String[]> placeIndexTokens = new HashMap<String,String[]>();
+      PostMethod m = new PostMethod(indexUrl+"/placeindex");
+      String q = Utils.join("|", places);
+      m.addParameter("q", q);
+      Element root = null;
+      long startNanos = System.nanoTime();
+      try
+      {
+         indexClient.executeHttpMethod(m);
+         String response = HttpClientHelper.getResponse(m);
+         placeIndexMetrics.record(startNanos, places.size(), HttpClientHelper.getLastResponseBytes());
+         root = indexClient.parseText(response).getRootElement();
+      }
+      finally
+      {
+         m.releaseConnection();
+      }
+
+      if (root != null) {
+         // check for valid status
+         Nodes status = root.query("/response/lst[@name='responseHeader']/int[@name='status']");
+         if (status.size() == 0 || Integer.parseInt(status.get(0).getValue()) != 0) {
+            throw new RuntimeException("Unexpected status="+(status.size() == 0 ? "not found" : status.get(0).getValue()));
+         }
+
+         // collect tokens to index
+         Nodes results = root.query("/response/arr[@name='response']/lst");
+         for (int i = 0; i < results.size(); i++) {
+            Element result = (Element)results.get(i);
+            Elements children = result.getChildElements();
+            String placeName = null;
+            String[] indexTokens = null;
+            for (int j = 0; j < children.size(); j++) {
+               Element child = children.get(j);
+               if (child.getAttributeValue("name").equals("q")) {
+                  placeName = child.getValue();
+               }
+               else if (child.getAttributeValue("name").equals("index")) {
+                  Elements tokens = child.getChildElements();
+                  if (tokens.size() > 0) {
+                     indexTokens = new String[tokens.size()];
+                     for (int k = 0; k < tokens.size(); k++) {
+                        indexTokens[k] = tokens.get(k).getValue();
+                     }
+                  }
+               }
+            }
+            if (placeName != null && indexTokens != null) {
+               placeIndexTokens.put(placeName, indexTokens);
+            }
+         }
+      }
+      return placeIndexTokens;
+   }
+
    public void standardizePlaces(List<SolrInputDocument> docs) throws IOException, ParsingException {
       // gather all of the places
       Set<String> places = new HashSet<String>();
@@ -249,58 +320,7 @@ public class PlaceStandardizer {
       }
 
       // call index server to get place tokens to index
-      Map<String,String[]> placeIndexTokens = new HashMap<String,String[]>();
-      if (places.size() > 0) {
-         PostMethod m = new PostMethod(indexUrl+"/placeindex");
-         String q = Utils.join("|", places);
-         m.addParameter("q", q);
-         Element root = null;
-         try
-         {
-            indexClient.executeHttpMethod(m);
-            String response = HttpClientHelper.getResponse(m);
-            root = indexClient.parseText(response).getRootElement();
-         }
-         finally
-         {
-            m.releaseConnection();
-         }
-
-         if (root != null) {
-            // check for valid status
-            Nodes status = root.query("/response/lst[@name='responseHeader']/int[@name='status']");
-            if (status.size() == 0 || Integer.parseInt(status.get(0).getValue()) != 0) {
-               throw new RuntimeException("Unexpected status="+(status.size() == 0 ? "not found" : status.get(0).getValue()));
-            }
-
-            // collect tokens to index
-            Nodes results = root.query("/response/arr[@name='response']/lst");
-            for (int i = 0; i < results.size(); i++) {
-               Element result = (Element)results.get(i);
-               Elements children = result.getChildElements();
-               String placeName = null;
-               String[] indexTokens = null;
-               for (int j = 0; j < children.size(); j++) {
-                  Element child = children.get(j);
-                  if (child.getAttributeValue("name").equals("q")) {
-                     placeName = child.getValue();
-                  }
-                  else if (child.getAttributeValue("name").equals("index")) {
-                     Elements tokens = child.getChildElements();
-                     if (tokens.size() > 0) {
-                        indexTokens = new String[tokens.size()];
-                        for (int k = 0; k < tokens.size(); k++) {
-                           indexTokens[k] = tokens.get(k).getValue();
-                        }
-                     }
-                  }
-               }
-               if (placeName != null && indexTokens != null) {
-                  placeIndexTokens.put(placeName, indexTokens);
-               }
-            }
-         }
-      }
+      Map<String,String[]> placeIndexTokens = (places.size() > 0 ? getPlaceIndexTokens(places) : new HashMap<String,String[]>());
 
       // update documents
       Map<String,List<String>> placeFieldTokens = new HashMap<String,List<String>>();
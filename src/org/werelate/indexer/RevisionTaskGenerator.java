@@ -61,4 +61,12 @@ public class RevisionTaskGenerator extends BaseTaskGenerator
    {
       cm.updateCheckpoint(it.getSequenceId(), it.getRevTimestamp());
    }
+
+   public long getEventMillis(IndexTask it) {
+      return parseWikiTimestamp(it.getRevTimestamp());
+   }
+
+   public boolean skipsUnchangedPages() {
+      return true;
+   }
 }
@@ -0,0 +1,249 @@
+package org.werelate.indexer;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.werelate.util.Utils;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends batches of deletes and documents to solr in the background over several connections.
+ * Each connection sends its share of a batch's deletes and adds together as one update request.
+ *
+ * Each batch is split by page id across the connections, and each connection sends its part of each batch
+ * in the order the batches were sent, so updates to the same page are always applied in order.
+ * A failed batch is logged with its name, and the failure is thrown from the next call to send or flush.
+ */
+public class SolrUpdateClient
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   private static final StageMetrics sendMetrics = IndexerMetrics.stage("solr.update");
+
+   private SolrServer solr;
+   private PacingController pacing;
+   private List<ExecutorService> senders;
+   private Semaphore pendingBatches;
+   private int maxPendingBatches;
+   private Throwable failure;
+   private String failedBatch;
+
+   /**
+    * Create a solr server for index_url that sends updates in the specified format (javabin or xml)
+    */
+   public static SolrServer createHttpServer(String url, String format, int connections) throws MalformedURLException {
+      CommonsHttpSolrServer server = new CommonsHttpSolrServer(url);
+      server.setDefaultMaxConnectionsPerHost(connections + 1); // leave one for commits
+      server.setMaxTotalConnections(connections + 1);
+      if ("javabin".equals(format)) {
+         server.setRequestWriter(new BinaryRequestWriter()); // posts to /update/javabin
+      }
+      else if (!"xml".equals(format)) {
+         throw new RuntimeException("Unknown solr_update_format="+format);
+      }
+      return server;
+   }
+
+   /**
+    * @param pacing told how long each request takes and when one fails; may be null
+    */
+   public SolrUpdateClient(SolrServer solr, PacingController pacing, int connections, int maxPendingBatches) {
+      this.solr = solr;
+      this.pacing = pacing;
+      this.maxPendingBatches = Math.max(1, maxPendingBatches);
+      this.pendingBatches = new Semaphore(this.maxPendingBatches);
+      this.failure = null;
+      senders = new ArrayList<ExecutorService>();
+      for (int i = 0; i < Math.max(1, connections); i++) {
+         final String threadName = "indexer-solr-"+(i+1);
+         senders.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, threadName);
+               t.setDaemon(true);
+               return t;
+            }
+         }));
+      }
+   }
+
+   // the part of a batch that goes over one connection
+   private class PartialUpdate implements Runnable {
+      private BatchUpdate batch;
+      private List<String> deleteIds;
+      private List<SolrInputDocument> docs;
+
+      public PartialUpdate(BatchUpdate batch) {
+         this.batch = batch;
+         this.deleteIds = new ArrayList<String>();
+         this.docs = new ArrayList<SolrInputDocument>();
+      }
+
+      public void run() {
+         try {
+            if (!batch.isFailed() && (deleteIds.size() > 0 || docs.size() > 0)) {
+               // send the deletes and adds as a single request
+               UpdateRequest req = new UpdateRequest();
+               if (docs.size() > 0) {
+                  req.add(docs);
+               }
+               if (deleteIds.size() > 0) {
+                  // solr applies a request's adds before its deletes; a page that is added doesn't need deleting anyway
+                  Set<String> addedIds = new HashSet<String>();
+                  for (SolrInputDocument doc : docs) {
+                     addedIds.add(doc.getFieldValue(Utils.FLD_PAGE_ID).toString());
+                  }
+                  List<String> ids = new ArrayList<String>(deleteIds.size());
+                  for (String pageId : deleteIds) {
+                     if (!addedIds.contains(pageId)) {
+                        ids.add(pageId);
+                     }
+                  }
+                  if (ids.size() > 0) {
+                     req.deleteById(ids);
+                  }
+               }
+               long startMillis = System.currentTimeMillis();
+               long startNanos = System.nanoTime();
+               req.process(solr);
+               sendMetrics.record(startNanos, docs.size() + deleteIds.size(), 0);
+               if (pacing != null) {
+                  pacing.sentToSolr(System.currentTimeMillis() - startMillis);
+               }
+            }
+         }
+         catch (Throwable e) {
+            if (pacing != null) {
+               pacing.error();
+            }
+            batch.fail(e);
+         }
+         finally {
+            batch.partDone();
+         }
+      }
+   }
+
+   private class BatchUpdate {
+      private String name;
+      private int remainingParts;
+      private boolean failed;
+
+      public BatchUpdate(String name, int parts) {
+         this.name = name;
+         this.remainingParts = parts;
+         this.failed = false;
+      }
+
+      public synchronized boolean isFailed() {
+         return failed;
+      }
+
+      public void fail(Throwable e) {
+         synchronized (this) {
+            if (failed) {
+               return;
+            }
+            failed = true;
+         }
+         logger.log(Level.SEVERE, "Solr update failed for batch "+name, e);
+         recordFailure(name, e);
+      }
+
+      public void partDone() {
+         synchronized (this) {
+            if (--remainingParts > 0) {
+               return;
+            }
+         }
+         pendingBatches.release();
+      }
+   }
+
+   private synchronized void recordFailure(String batchName, Throwable e) {
+      if (failure == null) {
+         failure = e;
+         failedBatch = batchName;
+      }
+   }
+
+   private synchronized void checkFailure() {
+      if (failure != null) {
+         Throwable e = failure;
+         failure = null;
+         throw new RuntimeException("Solr update failed for batch "+failedBatch+": "+e, e);
+      }
+   }
+
+   private int getPartition(String pageId) {
+      return (pageId.hashCode() & 0x7fffffff) % senders.size();
+   }
+
+   /**
+    * Queue a batch of deletes and documents; blocks while too many batches are still being sent
+    */
+   public void send(String batchName, List<String> deleteIds, List<SolrInputDocument> docs) {
+      checkFailure();
+      List<PartialUpdate> parts = new ArrayList<PartialUpdate>(senders.size());
+      BatchUpdate batch = new BatchUpdate(batchName, senders.size());
+      for (int i = 0; i < senders.size(); i++) {
+         parts.add(new PartialUpdate(batch));
+      }
+      for (String pageId : deleteIds) {
+         parts.get(getPartition(pageId)).deleteIds.add(pageId);
+      }
+      for (SolrInputDocument doc : docs) {
+         parts.get(getPartition(doc.getFieldValue(Utils.FLD_PAGE_ID).toString())).docs.add(doc);
+      }
+      try {
+         pendingBatches.acquire();
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("Interrupted sending batch "+batchName, e);
+      }
+      for (int i = 0; i < senders.size(); i++) {
+         senders.get(i).execute(parts.get(i));
+      }
+   }
+
+   /**
+    * Wait until every batch has been sent
+    */
+   public void flush() {
+      try {
+         pendingBatches.acquire(maxPendingBatches);
+         pendingBatches.release(maxPendingBatches);
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("Interrupted waiting for solr updates", e);
+      }
+      checkFailure();
+   }
+
+   public void shutdown() {
+      for (ExecutorService sender : senders) {
+         sender.shutdown();
+      }
+      try {
+         for (ExecutorService sender : senders) {
+            sender.awaitTermination(60, TimeUnit.SECONDS);
+         }
+      }
+      catch (InterruptedException e) {
+         // shutting down anyway
+      }
+   }
+}
@@ -0,0 +1,145 @@
+package org.werelate.indexer;
+
+/**
+ * Timings and counts for one stage of indexing: how many times it ran, how many items (pages, documents, queries)
+ * it handled, how many bytes it read, and a histogram of how long it took.
+ *
+ * The histogram has four buckets per power of two microseconds, so percentiles are within about 20% of the real value
+ * without keeping every sample.
+ */
+public class StageMetrics implements StageMetricsMBean
+{
+   private static final int BUCKETS = 248;
+
+   private String name;
+   private long startMillis;
+   private long count;
+   private long items;
+   private long bytes;
+   private long totalNanos;
+   private long maxNanos;
+   private long[] histogram;
+
+   StageMetrics(String name) {
+      this.name = name;
+      this.histogram = new long[BUCKETS];
+      reset();
+   }
+
+   private static int bucket(long micros) {
+      if (micros < 4) {
+         return (int)Math.max(0, micros);
+      }
+      int log = 63 - Long.numberOfLeadingZeros(micros);
+      return 4 * (log - 1) + (int)((micros >>> (log - 2)) & 3);
+   }
+
+   // the largest number of microseconds that falls in the bucket
+   private static long upperBound(int bucket) {
+      if (bucket < 4) {
+         return bucket;
+      }
+      int log = bucket / 4 + 1;
+      return ((4L + bucket % 4 + 1) << (log - 2)) - 1;
+   }
+
+   /**
+    * Record one run of the stage that handled a single item
+    * @param startNanos System.nanoTime() when the stage started
+    */
+   public void record(long startNanos) {
+      record(startNanos, 1, 0);
+   }
+
+   /**
+    * Record one run of the stage
+    * @param startNanos System.nanoTime() when the stage started
+    */
+   public void record(long startNanos, long items, long bytes) {
+      long nanos = System.nanoTime() - startNanos;
+      synchronized (this) {
+         count++;
+         this.items += items;
+         this.bytes += bytes;
+         totalNanos += nanos;
+         if (nanos > maxNanos) {
+            maxNanos = nanos;
+         }
+         histogram[bucket(nanos / 1000)]++;
+      }
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public synchronized long getCount() {
+      return count;
+   }
+
+   public synchronized long getItems() {
+      return items;
+   }
+
+   public synchronized long getBytes() {
+      return bytes;
+   }
+
+   /**
+    * Items per second of wall-clock time since the metrics were reset
+    */
+   public synchronized double getItemsPerSecond() {
+      long millis = System.currentTimeMillis() - startMillis;
+      return millis > 0 ? items * 1000.0 / millis : 0;
+   }
+
+   public synchronized double getMeanMillis() {
+      return count > 0 ? totalNanos / 1000000.0 / count : 0;
+   }
+
+   private synchronized double getPercentileMillis(double percentile) {
+      long target = (long)Math.ceil(count * percentile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += histogram[i];
+         if (seen >= target && seen > 0) {
+            return Math.min(upperBound(i) / 1000.0, maxNanos / 1000000.0);
+         }
+      }
+      return 0;
+   }
+
+   public double getP50Millis() {
+      return getPercentileMillis(0.50);
+   }
+
+   public double getP95Millis() {
+      return getPercentileMillis(0.95);
+   }
+
+   public double getP99Millis() {
+      return getPercentileMillis(0.99);
+   }
+
+   public synchronized double getMaxMillis() {
+      return maxNanos / 1000000.0;
+   }
+
+   public synchronized void reset() {
+      startMillis = System.currentTimeMillis();
+      count = 0;
+      items = 0;
+      bytes = 0;
+      totalNanos = 0;
+      maxNanos = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         histogram[i] = 0;
+      }
+   }
+
+   public synchronized String toString() {
+      return String.format("%s: count=%d items=%d (%.1f/s) bytes=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                           name, count, items, getItemsPerSecond(), bytes, getMeanMillis(),
+                           getP50Millis(), getP95Millis(), getP99Millis(), getMaxMillis());
+   }
+}
@@ -0,0 +1,19 @@
+package org.werelate.indexer;
+
+/**
+ * What JMX shows for each indexing stage; times are in milliseconds
+ */
+public interface StageMetricsMBean
+{
+   public String getName();
+   public long getCount();
+   public long getItems();
+   public long getBytes();
+   public double getItemsPerSecond();
+   public double getMeanMillis();
+   public double getP50Millis();
+   public double getP95Millis();
+   public double getP99Millis();
+   public double getMaxMillis();
+   public void reset();
+}
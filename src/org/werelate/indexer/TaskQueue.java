@@ -0,0 +1,98 @@
+package org.werelate.indexer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index tasks waiting to be fetched, shared by all of the task generators, holding at most one task per page.
+ *
+ * When a page is already waiting, a new task for it is merged into the waiting one instead of being queued again,
+ * so a page that shows up in the move log, the revision stream and an index request during one run is fetched once.
+ * The merged task keeps the newest revision, and becomes a delete if either task was a delete; deletes are confirmed
+ * with the wiki when they're fetched, so a merged delete still indexes the page if the wiki has it.
+ * The page is skipped when unchanged only if both tasks allowed it.
+ * Tasks are taken in the order their pages were first queued.
+ */
+public class TaskQueue
+{
+   private static class Entry {
+      private IndexTask task;
+      private boolean skipUnchanged;
+
+      private Entry(IndexTask task, boolean skipUnchanged) {
+         this.task = task;
+         this.skipUnchanged = skipUnchanged;
+      }
+   }
+
+   private Map<String,Entry> pending;
+   private long added;
+   private long merged;
+
+   public TaskQueue() {
+      pending = new LinkedHashMap<String,Entry>();
+      added = 0;
+      merged = 0;
+   }
+
+   /**
+    * Queue a task, merging it with the task already waiting for the same page
+    * @param skipUnchanged true if the page can be skipped when its revision is already in the index
+    */
+   public synchronized void add(IndexTask task, boolean skipUnchanged) {
+      added++;
+      Entry entry = pending.get(task.getPageId());
+      if (entry == null) {
+         pending.put(task.getPageId(), new Entry(task, skipUnchanged));
+         return;
+      }
+      merged++;
+      // the generators still hold their tasks, so merge into a new one
+      IndexTask waiting = entry.task;
+      boolean newer = task.getRevId() > waiting.getRevId();
+      entry.task = new IndexTask(waiting.getSequenceId(), waiting.getPageId(),
+                                 task.getAction() == IndexTask.ACTION_DELETE ? IndexTask.ACTION_DELETE : waiting.getAction(),
+                                 newer ? task.getRevId() : waiting.getRevId(),
+                                 newer ? task.getRevTimestamp() : waiting.getRevTimestamp());
+      entry.skipUnchanged = entry.skipUnchanged && skipUnchanged;
+   }
+
+   public synchronized int size() {
+      return pending.size();
+   }
+
+   /**
+    * Take the next batch of tasks
+    * @param size maximum number of tasks in the batch
+    * @param full if true, return a batch only if at least size tasks are waiting
+    * @return the batch, or null if there isn't one to take
+    */
+   public synchronized PageBatch takeBatch(int size, boolean full) {
+      if (pending.size() == 0 || (full && pending.size() < size)) {
+         return null;
+      }
+      List<IndexTask> tasks = new ArrayList<IndexTask>(Math.min(size, pending.size()));
+      List<String> skippable = new ArrayList<String>();
+      Iterator<Entry> i = pending.values().iterator();
+      while (i.hasNext() && tasks.size() < size) {
+         Entry entry = i.next();
+         tasks.add(entry.task);
+         if (entry.skipUnchanged) {
+            skippable.add(entry.task.getPageId());
+         }
+         i.remove();
+      }
+      PageBatch batch = new PageBatch(tasks);
+      for (String pageId : skippable) {
+         batch.setSkipUnchanged(pageId);
+      }
+      return batch;
+   }
+
+   public synchronized String toString() {
+      return "queued=" + added + " merged=" + merged + " waiting=" + pending.size();
+   }
+}
@@ -0,0 +1,403 @@
+package org.werelate.indexer;
+
+import org.werelate.util.DatabaseConnectionHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * The title_sort_key table held in memory, so TitleSorter can find a key's neighbors without querying the database.
+ *
+ * The keys that were in the table at startup are packed back to back into a single char array in sort order and
+ * binary searched; keys added since then go in a TreeMap and are written back to the table when flush is called.
+ * This is only safe while the indexer is the only process adding sort keys, since keys added by anyone else after
+ * the table is loaded aren't seen.
+ */
+public class TitleSortIndex
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+
+   // a key next to one that's being added: the index of a loaded key, or -1 for a key added since the table was loaded
+   private static class Neighbor {
+      private String key;
+      private int index;
+      private int value;
+
+      private Neighbor(String key, int index, int value) {
+         this.key = key;
+         this.index = index;
+         this.value = value;
+      }
+   }
+
+   // the keys loaded at startup; key i is chars[starts[i]] up to chars[starts[i+1]] and its sort value is values[i]
+   private char[] chars;
+   private int[] starts;
+   private int[] values;
+   private int size;
+   // keys added since the table was loaded
+   private TreeMap<String,Integer> added;
+   // added keys that haven't been written to the table yet
+   private List<String> pending;
+   // keys that were renumbered since the last flush, and their new values
+   private Map<String,Integer> renumbered;
+   private TitleSortRebalancer rebalancer;
+   private DatabaseConnectionHelper conn;
+
+   /**
+    * Load the title_sort_key table.
+    * @throws IllegalStateException if the database doesn't order the keys the way String.compareTo does, in which case
+    * the midpoints assigned from memory wouldn't agree with the ones assigned by querying the table
+    */
+   public static TitleSortIndex load(DatabaseConnectionHelper conn) throws SQLException {
+      long startMillis = System.currentTimeMillis();
+      TitleSortIndex index = new TitleSortIndex(conn);
+      Connection db = conn.getConnection();
+      PreparedStatement ps = db.prepareStatement("SELECT sort_key, value FROM title_sort_key ORDER BY sort_key");
+      try {
+         // stream the rows instead of reading the whole table into the driver's buffers first
+         ps.setFetchSize(Integer.MIN_VALUE);
+         ResultSet rs = ps.executeQuery();
+         String prevKey = null;
+         while (rs.next()) {
+            String key = rs.getString(1);
+            if (prevKey != null && prevKey.compareTo(key) >= 0) {
+               rs.close();
+               throw new IllegalStateException("title_sort_key is ordered differently than in memory: \"" + prevKey +
+                                               "\" comes before \"" + key + "\"");
+            }
+            index.append(key, rs.getInt(2));
+            prevKey = key;
+         }
+         rs.close();
+      }
+      finally {
+         ps.close();
+         db.close();
+      }
+      index.trim();
+      logger.info("Loaded " + index.size + " title sort keys in " + (System.currentTimeMillis() - startMillis) + " ms");
+      return index;
+   }
+
+   /**
+    * Check from the sort_key column's type and collation, without reading the table, that the database orders the
+    * keys the way String.compareTo does, for callers that pick neighbors in String.compareTo order from rows the
+    * database returned, like TitleSorter.getSortValues. Binary strings and _bin collations compare code points,
+    * which differs from String.compareTo only for characters outside the Basic Multilingual Plane.
+    * @throws IllegalStateException if the column compares keys some other way
+    */
+   public static void checkCollation(DatabaseConnectionHelper conn) throws SQLException {
+      Connection db = conn.getConnection();
+      PreparedStatement ps = db.prepareStatement("SELECT DATA_TYPE, COLLATION_NAME FROM information_schema.COLUMNS " +
+            "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'title_sort_key' AND COLUMN_NAME = 'sort_key'");
+      try {
+         ResultSet rs = ps.executeQuery();
+         try {
+            if (!rs.next()) {
+               throw new IllegalStateException("title_sort_key.sort_key not found");
+            }
+            String type = rs.getString(1).toLowerCase();
+            String collation = rs.getString(2);
+            boolean binary;
+            if (collation == null) {
+               // binary strings have no collation and compare bytes
+               binary = type.contains("binary") || type.endsWith("blob");
+            }
+            else {
+               binary = collation.toLowerCase().endsWith("_bin");
+            }
+            if (!binary) {
+               throw new IllegalStateException("title_sort_key.sort_key is " + type +
+                                               (collation == null ? "" : " with collation " + collation) +
+                                               ", which doesn't order keys the way the indexer compares them");
+            }
+         }
+         finally {
+            rs.close();
+         }
+      }
+      finally {
+         ps.close();
+         db.close();
+      }
+   }
+
+   private TitleSortIndex(DatabaseConnectionHelper conn) {
+      chars = new char[1 << 20];
+      starts = new int[1 << 14];
+      values = new int[(1 << 14) - 1];
+      size = 0;
+      added = new TreeMap<String,Integer>();
+      pending = new ArrayList<String>();
+      renumbered = new HashMap<String,Integer>();
+      this.conn = conn;
+   }
+
+   private void append(String key, int value) {
+      int pos = starts[size];
+      if (pos + key.length() > chars.length) {
+         char[] grown = new char[Math.max(chars.length * 2, pos + key.length())];
+         System.arraycopy(chars, 0, grown, 0, pos);
+         chars = grown;
+      }
+      if (size + 1 == values.length) {
+         int[] grownValues = new int[values.length * 2];
+         System.arraycopy(values, 0, grownValues, 0, size);
+         values = grownValues;
+         int[] grownStarts = new int[starts.length * 2];
+         System.arraycopy(starts, 0, grownStarts, 0, size + 1);
+         starts = grownStarts;
+      }
+      key.getChars(0, key.length(), chars, pos);
+      values[size] = value;
+      starts[++size] = pos + key.length();
+   }
+
+   // drop the room left for growing
+   private void trim() {
+      char[] packedChars = new char[starts[size]];
+      System.arraycopy(chars, 0, packedChars, 0, packedChars.length);
+      chars = packedChars;
+      int[] packedStarts = new int[size + 1];
+      System.arraycopy(starts, 0, packedStarts, 0, size + 1);
+      starts = packedStarts;
+      int[] packedValues = new int[size];
+      System.arraycopy(values, 0, packedValues, 0, size);
+      values = packedValues;
+   }
+
+   // compare loaded key i to the given key the way String.compareTo does
+   private int compare(int i, String key) {
+      int start = starts[i];
+      int length = starts[i + 1] - start;
+      int n = Math.min(length, key.length());
+      for (int j = 0; j < n; j++) {
+         char c = chars[start + j];
+         char k = key.charAt(j);
+         if (c != k) {
+            return c - k;
+         }
+      }
+      return length - key.length();
+   }
+
+   // the index of the last loaded key <= the given key, or -1 if there isn't one
+   private int floor(String key) {
+      int lo = 0;
+      int hi = size - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int cmp = compare(mid, key);
+         if (cmp == 0) {
+            return mid;
+         }
+         else if (cmp < 0) {
+            lo = mid + 1;
+         }
+         else {
+            hi = mid - 1;
+         }
+      }
+      return hi;
+   }
+
+   private String getKey(int i) {
+      return new String(chars, starts[i], starts[i + 1] - starts[i]);
+   }
+
+   /**
+    * The sort value of the key if it's in the index; otherwise the midpoint between its neighbors, which is
+    * added to the index and queued to be written to the table.
+    */
+   public synchronized int getSortValue(String key) {
+      int prevIndex = floor(key);
+      if (prevIndex >= 0 && compare(prevIndex, key) == 0) {
+         return values[prevIndex];
+      }
+      Integer value = added.get(key);
+      if (value != null) {
+         return value;
+      }
+
+      // the neighbors are the closer of the loaded and added keys on either side
+      long prevValue = Integer.MIN_VALUE;
+      String prevKey = null;
+      if (prevIndex >= 0) {
+         prevKey = getKey(prevIndex);
+         prevValue = values[prevIndex];
+      }
+      Map.Entry<String,Integer> prevAdded = added.lowerEntry(key);
+      if (prevAdded != null && (prevKey == null || prevAdded.getKey().compareTo(prevKey) > 0)) {
+         prevValue = prevAdded.getValue();
+      }
+      long nextValue = Integer.MAX_VALUE;
+      String nextKey = null;
+      if (prevIndex + 1 < size) {
+         nextKey = getKey(prevIndex + 1);
+         nextValue = values[prevIndex + 1];
+      }
+      Map.Entry<String,Integer> nextAdded = added.higherEntry(key);
+      if (nextAdded != null && (nextKey == null || nextAdded.getKey().compareTo(nextKey) < 0)) {
+         nextValue = nextAdded.getValue();
+      }
+
+      if (rebalancer != null && rebalancer.isExhausted(prevValue, nextValue)) {
+         Integer rebalancedValue = rebalance(key, prevIndex);
+         if (rebalancedValue != null) {
+            return rebalancedValue;
+         }
+      }
+
+      // the value is the midway point
+      int midpoint = (int)((prevValue + nextValue) / 2);
+      added.put(key, midpoint);
+      pending.add(key);
+      return midpoint;
+   }
+
+   /**
+    * Renumber the keys around a new key when there's no room for it between its neighbors
+    */
+   public synchronized void setRebalancer(TitleSortRebalancer rebalancer) {
+      this.rebalancer = rebalancer;
+   }
+
+   // up to count keys on one side of the key, nearest first, merging the loaded and added keys
+   private List<Neighbor> getNeighbors(String key, int prevIndex, boolean before, int count) {
+      List<Neighbor> neighbors = new ArrayList<Neighbor>();
+      int i = (before ? prevIndex : prevIndex + 1);
+      Iterator<Map.Entry<String,Integer>> addedKeys =
+            (before ? added.headMap(key, false).descendingMap() : added.tailMap(key, false)).entrySet().iterator();
+      Map.Entry<String,Integer> addedKey = (addedKeys.hasNext() ? addedKeys.next() : null);
+      while (neighbors.size() < count) {
+         String loadedKey = (i >= 0 && i < size ? getKey(i) : null);
+         if (loadedKey == null && addedKey == null) {
+            break;
+         }
+         // take whichever of the next loaded and added keys is nearer
+         boolean nearerLoaded = (loadedKey != null && (addedKey == null ||
+               (before ? loadedKey.compareTo(addedKey.getKey()) > 0 : loadedKey.compareTo(addedKey.getKey()) < 0)));
+         if (nearerLoaded) {
+            neighbors.add(new Neighbor(loadedKey, i, values[i]));
+            i += (before ? -1 : 1);
+         }
+         else {
+            neighbors.add(new Neighbor(addedKey.getKey(), -1, addedKey.getValue()));
+            addedKey = (addedKeys.hasNext() ? addedKeys.next() : null);
+         }
+      }
+      return neighbors;
+   }
+
+   /**
+    * Give a new key a value by spreading it and the keys around it evenly between the keys on either side of them
+    * @return the key's value, or null if even the widest range doesn't have room for it
+    */
+   private Integer rebalance(String key, int prevIndex) {
+      long startNanos = System.nanoTime();
+      List<Neighbor> before;
+      List<Neighbor> after;
+      long lo;
+      long hi;
+      int radius = 4;
+      while (true) {
+         radius = Math.min(radius * 2, rebalancer.getMaxRadius());
+         // look at one more key on each side than is renumbered, to bound the range
+         before = getNeighbors(key, prevIndex, true, radius + 1);
+         after = getNeighbors(key, prevIndex, false, radius + 1);
+         lo = (before.size() > radius ? before.remove(radius).value : Integer.MIN_VALUE);
+         hi = (after.size() > radius ? after.remove(radius).value : Integer.MAX_VALUE);
+         boolean reachedEnds = (lo == Integer.MIN_VALUE && hi == Integer.MAX_VALUE);
+         if (rebalancer.isWideEnough(lo, hi, before.size() + after.size() + 1, radius, reachedEnds)) {
+            break;
+         }
+      }
+      int[] newValues = rebalancer.spread(lo, hi, before.size() + after.size() + 1);
+      if (newValues == null) {
+         logger.warning("No room to renumber the title sort keys around \"" + key + "\"");
+         return null;
+      }
+
+      Collections.reverse(before);
+      List<Neighbor> range = before;
+      range.add(null);
+      range.addAll(after);
+      int value = 0;
+      int count = 0;
+      for (int i = 0; i < range.size(); i++) {
+         Neighbor neighbor = range.get(i);
+         if (neighbor == null) {
+            value = newValues[i];
+         }
+         else if (neighbor.value != newValues[i]) {
+            rebalancer.addRenumberedValue(neighbor.value);
+            if (neighbor.index >= 0) {
+               values[neighbor.index] = newValues[i];
+            }
+            else {
+               added.put(neighbor.key, newValues[i]);
+            }
+            renumbered.put(neighbor.key, newValues[i]);
+            count++;
+         }
+      }
+      added.put(key, value);
+      pending.add(key);
+      rebalancer.logRenumbering(key, count, startNanos);
+      return value;
+   }
+
+   /**
+    * Write the keys added since the last flush to the title_sort_key table in a single batch,
+    * followed by the new values of any keys that were renumbered
+    */
+   public synchronized void flush() throws SQLException {
+      if (pending.size() == 0 && renumbered.size() == 0) {
+         return;
+      }
+      Connection db = conn.getConnection();
+      try {
+         if (pending.size() > 0) {
+            // if the batch fails, the keys stay pending so the next flush tries them again
+            PreparedStatement psInsert = db.prepareStatement("INSERT IGNORE INTO title_sort_key VALUES (?, ?)");
+            try {
+               for (String key : pending) {
+                  psInsert.setString(1, key);
+                  psInsert.setInt(2, added.get(key));
+                  psInsert.addBatch();
+               }
+               psInsert.executeBatch();
+            }
+            finally {
+               psInsert.close();
+            }
+            pending.clear();
+         }
+         if (renumbered.size() > 0) {
+            rebalancer.write(db, renumbered);
+            renumbered.clear();
+         }
+      }
+      finally {
+         db.close();
+      }
+   }
+
+   /**
+    * The number of keys in the index
+    */
+   public synchronized int size() {
+      return size + added.size();
+   }
+}
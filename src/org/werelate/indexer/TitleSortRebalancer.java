@@ -0,0 +1,164 @@
+package org.werelate.indexer;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.werelate.util.Utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Renumbers a small range of title sort keys when a new key falls into a gap too narrow to give it a value of its own,
+ * instead of rebuilding title_sort_key offline with GenerateSortNames and PopulateTitleSortKey.
+ *
+ * The range around the new key is widened until its keys can be spaced at least min_spacing apart between the
+ * values of the keys on either side of it, or it holds max_window keys. The keys' old values are remembered, so that
+ * once the documents sent so far are in the index, the pages indexed with those values can be looked up and re-indexed.
+ */
+public class TitleSortRebalancer
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+   private static final StageMetrics metrics = IndexerMetrics.stage("titlesort.rebalance");
+   // solr's default maxBooleanClauses is 1024
+   private static final int MAX_QUERY_VALUES = 500;
+   private static final int QUERY_ROWS = 1000;
+
+   private int minSpacing;
+   private int maxWindow;
+   private Set<Integer> renumberedValues;
+
+   public TitleSortRebalancer(int minSpacing, int maxWindow) {
+      this.minSpacing = Math.max(2, minSpacing);
+      this.maxWindow = Math.max(2, maxWindow);
+      this.renumberedValues = new HashSet<Integer>();
+   }
+
+   /**
+    * True if there's no value strictly between the values of a new key's neighbors
+    */
+   public boolean isExhausted(long prevValue, long nextValue) {
+      return nextValue - prevValue < 2;
+   }
+
+   /**
+    * The most keys the range around a new key should hold on each side of it
+    */
+   public int getMaxRadius() {
+      return maxWindow / 2;
+   }
+
+   /**
+    * True if count keys fit between the bounds at least min_spacing apart, or the range can't usefully be widened
+    * @param radius the number of keys looked at on each side of the new key
+    * @param reachedEnds true if the range already runs from the first key to the last
+    */
+   public boolean isWideEnough(long lo, long hi, int count, int radius, boolean reachedEnds) {
+      return (hi - lo) / (count + 1) >= minSpacing || reachedEnds || radius >= getMaxRadius();
+   }
+
+   /**
+    * Values for count keys spaced evenly between lo and hi, or null if they don't fit
+    */
+   public int[] spread(long lo, long hi, int count) {
+      if (hi - lo < count + 1) {
+         return null;
+      }
+      int[] values = new int[count];
+      for (int i = 0; i < count; i++) {
+         values[i] = (int)(lo + (hi - lo) * (i + 1) / (count + 1));
+      }
+      return values;
+   }
+
+   /**
+    * Remember the value a key had before it was renumbered, so the pages indexed with it can be re-indexed
+    */
+   public synchronized void addRenumberedValue(int oldValue) {
+      renumberedValues.add(oldValue);
+   }
+
+   public synchronized boolean hasRenumberedValues() {
+      return renumberedValues.size() > 0;
+   }
+
+   /**
+    * Log a renumbering and count it in the titlesort.rebalance metrics
+    */
+   public void logRenumbering(String key, int count, long startNanos) {
+      metrics.record(startNanos, count, 0);
+      logger.info("Renumbered " + count + " title sort keys around \"" + key + "\"");
+   }
+
+   /**
+    * Write the values of the given keys in a single statement, adding the ones that aren't in the table yet,
+    * so the table is never left with only some of a range renumbered
+    */
+   public void write(Connection conn, Map<String,Integer> keyValues) throws SQLException {
+      StringBuilder sql = new StringBuilder("INSERT INTO title_sort_key VALUES ");
+      for (int i = 0; i < keyValues.size(); i++) {
+         sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+      }
+      sql.append(" ON DUPLICATE KEY UPDATE value = VALUES(value)");
+      PreparedStatement ps = conn.prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (Map.Entry<String,Integer> entry : keyValues.entrySet()) {
+            ps.setString(param++, entry.getKey());
+            ps.setInt(param++, entry.getValue());
+         }
+         ps.executeUpdate();
+      }
+      finally {
+         ps.close();
+      }
+   }
+
+   /**
+    * The ids of the pages in the index with the values the renumbered keys used to have.
+    * Call this after the documents sent so far have been committed; the values are forgotten once they've been looked up.
+    */
+   public List<String> getRenumberedPageIds(SolrServer solr) throws SolrServerException {
+      List<Integer> values;
+      synchronized (this) {
+         values = new ArrayList<Integer>(renumberedValues);
+         renumberedValues.clear();
+      }
+      List<String> pageIds = new ArrayList<String>();
+      for (int i = 0; i < values.size(); i += MAX_QUERY_VALUES) {
+         // TitleSortValue isn't a trie field, so look up the values as terms instead of as a range
+         StringBuilder q = new StringBuilder(Utils.FLD_TITLE_SORT_VALUE + ":(");
+         for (int j = i; j < Math.min(i + MAX_QUERY_VALUES, values.size()); j++) {
+            q.append(j == i ? "\"" : " OR \"").append(values.get(j)).append("\"");
+         }
+         q.append(")");
+         SolrQuery query = new SolrQuery(q.toString());
+         // override the search handler's defaults
+         query.set("defType", "lucene");
+         query.setHighlight(false);
+         query.setFields(Utils.FLD_PAGE_ID);
+         query.setRows(QUERY_ROWS);
+         int start = 0;
+         long found;
+         do {
+            query.setStart(start);
+            SolrDocumentList docs = solr.query(query).getResults();
+            for (SolrDocument doc : docs) {
+               pageIds.add(doc.getFieldValue(Utils.FLD_PAGE_ID).toString());
+            }
+            found = docs.getNumFound();
+            start += QUERY_ROWS;
+         } while (start < found);
+      }
+      return pageIds;
+   }
+}
@@ -3,28 +3,73 @@ package org.werelate.indexer;
 import org.werelate.util.DatabaseConnectionHelper;
 import org.werelate.util.Utils;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
 
 /**
  * Created by IntelliJ IDEA.
  * User: dallan
  */
 public class TitleSorter {
-   private PreparedStatement psGetPrev;
-   private PreparedStatement psGetNext;
-   private PreparedStatement psInsert;
+   private static final Logger logger = Logger.getLogger("org.werelate.indexer");
+   // the page indexers may share a TitleSorter or each have their own, and the batch sorter runs alongside them;
+   // hold this lock while reading neighbors and inserting so that two threads can't assign the same midpoint to different titles
+   private static final Object lock = new Object();
+   private static final StageMetrics metrics = IndexerMetrics.stage("titlesort");
+
+   private static final String SQL_GET_PREV = "SELECT sort_key, value FROM title_sort_key where sort_key <= ? ORDER BY sort_key desc limit 1";
+   private static final String SQL_GET_NEXT = "SELECT value FROM title_sort_key where sort_key > ? ORDER BY sort_key asc limit 1";
+   private static final String SQL_INSERT = "INSERT IGNORE INTO title_sort_key VALUES (?, ?)";
+   private static final String SQL_GET_PREV_RANGE = "SELECT sort_key, value FROM title_sort_key where sort_key < ? ORDER BY sort_key desc limit ?";
+   private static final String SQL_GET_NEXT_RANGE = "SELECT sort_key, value FROM title_sort_key where sort_key > ? ORDER BY sort_key asc limit ?";
+
+   private DatabaseConnectionHelper conn;
+   private TitleSortIndex index;
+   private TitleSortRebalancer rebalancer;
+   private int queries;
+
+   /**
+    * For stand-ins that override getSortValue and don't use the database, like the benchmarks'
+    */
+   protected TitleSorter() {
+   }
 
    public TitleSorter(DatabaseConnectionHelper conn) throws SQLException {
       // TODO title_sort
-      this.psGetPrev = conn.preparedStatement("SELECT sort_key, value FROM title_sort_key where sort_key <= ? ORDER BY sort_key desc limit 1");
-      this.psGetNext = conn.preparedStatement("SELECT value FROM title_sort_key where sort_key > ? ORDER BY sort_key asc limit 1");
-      this.psInsert = conn.preparedStatement("INSERT IGNORE INTO title_sort_key VALUES (?, ?)");
+      // statements are prepared on a pooled connection for each call; the driver caches them
+      this.conn = conn;
+   }
+
+   /**
+    * Look up and add sort keys in the in-memory index instead of the database. The caller flushes the index
+    * to write the new keys to the database.
+    */
+   public TitleSorter(TitleSortIndex index) {
+      this.index = index;
+   }
+
+   /**
+    * Renumber the keys around a new key when there's no room for it between its neighbors
+    */
+   public void setRebalancer(TitleSortRebalancer rebalancer) {
+      this.rebalancer = rebalancer;
    }
 
    // keep in sync with TitleSorter in indexer project
-   private String generateSortKey(String title) {
+   protected String generateSortKey(String title) {
       title = Utils.romanize(title);
       if (title.length() > 80) {
          title = title.substring(0, 80);
@@ -33,20 +78,202 @@ public class TitleSorter {
    }
 
    public int getSortValue(String title) throws SQLException {
-      int value;
+      // includes the time spent waiting for the lock; items counts the database round-trips
+      long startNanos = System.nanoTime();
+      synchronized (lock) {
+         queries = 0;
+         try {
+            return getSortValueLocked(title);
+         }
+         finally {
+            metrics.record(startNanos, queries, 0);
+         }
+      }
+   }
+
+   /**
+    * Get the sort values of a batch of titles at once: the neighbors of all of their keys are read in a single query,
+    * then the new keys are assigned values evenly spaced between their neighbors and inserted in a single transaction.
+    * The neighbors are picked in String.compareTo order, so only use this if TitleSortIndex.checkCollation passes.
+    * @return map of title to sort value
+    */
+   public Map<String,Integer> getSortValues(Collection<String> titles) throws SQLException {
+      long startNanos = System.nanoTime();
+      synchronized (lock) {
+         queries = 0;
+         try {
+            return getSortValuesLocked(titles);
+         }
+         finally {
+            metrics.record(startNanos, queries, 0);
+         }
+      }
+   }
+
+   private Map<String,Integer> getSortValuesLocked(Collection<String> titles) throws SQLException {
+      Map<String,Integer> values = new HashMap<String,Integer>();
+      Map<String,String> titleKeys = new HashMap<String,String>();
+      TreeSet<String> keys = new TreeSet<String>();
+      for (String title : titles) {
+         if (!titleKeys.containsKey(title)) {
+            String key = generateSortKey(title);
+            titleKeys.put(title, key);
+            keys.add(key);
+         }
+      }
+      if (keys.size() == 0) {
+         return values;
+      }
+      if (index != null) {
+         for (Map.Entry<String,String> entry : titleKeys.entrySet()) {
+            values.put(entry.getKey(), index.getSortValue(entry.getValue()));
+         }
+         return values;
+      }
+      Connection db = conn.getConnection();
+      try {
+         return lookUpSortValues(db, titleKeys, keys);
+      }
+      finally {
+         db.close();
+      }
+   }
+
+   private Map<String,Integer> lookUpSortValues(Connection db, Map<String,String> titleKeys, TreeSet<String> keys) throws SQLException {
+      Map<String,Integer> values = new HashMap<String,Integer>();
+
+      // read the keys <= and > each key in one query
+      StringBuilder sql = new StringBuilder();
+      for (int i = 0; i < keys.size(); i++) {
+         if (i > 0) {
+            sql.append(" UNION ALL ");
+         }
+         sql.append("(SELECT sort_key, value FROM title_sort_key where sort_key <= ? ORDER BY sort_key desc limit 1)" +
+                    " UNION ALL (SELECT sort_key, value FROM title_sort_key where sort_key > ? ORDER BY sort_key asc limit 1)");
+      }
+      TreeMap<String,Integer> known = new TreeMap<String,Integer>();
+      PreparedStatement psGetNeighbors = db.prepareStatement(sql.toString());
+      try {
+         int param = 1;
+         for (String key : keys) {
+            psGetNeighbors.setString(param++, key);
+            psGetNeighbors.setString(param++, key);
+         }
+         ResultSet rs = psGetNeighbors.executeQuery();
+         queries++;
+         while (rs.next()) {
+            known.put(rs.getString(1), rs.getInt(2));
+         }
+         rs.close();
+      }
+      finally {
+         psGetNeighbors.close();
+      }
+
+      // spread each run of new keys that fall between the same two neighbors evenly between them;
+      // a run of one gets the midway point, as getSortValue would assign
+      List<String> sortedKeys = new ArrayList<String>(keys);
+      Map<String,Integer> added = new TreeMap<String,Integer>();
+      List<String> crowded = new ArrayList<String>();
+      int i = 0;
+      while (i < sortedKeys.size()) {
+         String first = sortedKeys.get(i);
+         if (known.containsKey(first)) {
+            i++;
+            continue;
+         }
+         Map.Entry<String,Integer> prev = known.lowerEntry(first);
+         Map.Entry<String,Integer> next = known.higherEntry(first);
+         int end = i + 1;
+         while (end < sortedKeys.size() && !known.containsKey(sortedKeys.get(end)) &&
+                (next == null || sortedKeys.get(end).compareTo(next.getKey()) < 0)) {
+            end++;
+         }
+         long prevValue = (prev == null ? Integer.MIN_VALUE : prev.getValue());
+         long nextValue = (next == null ? Integer.MAX_VALUE : next.getValue());
+         int run = end - i;
+         if (rebalancer != null && nextValue - prevValue < run + 1) {
+            // there isn't room for all of them; add them one at a time once the others are in, renumbering as needed
+            crowded.addAll(sortedKeys.subList(i, end));
+         }
+         else {
+            for (int j = 0; j < run; j++) {
+               added.put(sortedKeys.get(i + j), (int)((prevValue * (run - j) + nextValue * (j + 1)) / (run + 1)));
+            }
+         }
+         i = end;
+      }
+      known.putAll(added);
+
+      // insert the new sort values
+      if (added.size() > 0) {
+         db.setAutoCommit(false);
+         PreparedStatement psInsert = db.prepareStatement(SQL_INSERT);
+         boolean committed = false;
+         try {
+            for (Map.Entry<String,Integer> entry : added.entrySet()) {
+               psInsert.setString(1, entry.getKey());
+               psInsert.setInt(2, entry.getValue());
+               psInsert.addBatch();
+            }
+            psInsert.executeBatch();
+            db.commit();
+            queries++;
+            committed = true;
+         }
+         finally {
+            psInsert.close();
+            if (!committed) {
+               db.rollback();
+            }
+            db.setAutoCommit(true);
+         }
+      }
+      for (String key : crowded) {
+         known.put(key, getKeySortValue(db, key));
+      }
+
+      for (Map.Entry<String,String> entry : titleKeys.entrySet()) {
+         values.put(entry.getKey(), known.get(entry.getValue()));
+      }
+      return values;
+   }
+
+   private int getSortValueLocked(String title) throws SQLException {
       // generate the sort key
       String key = generateSortKey(title);
+      if (index != null) {
+         return index.getSortValue(key);
+      }
+      Connection db = conn.getConnection();
+      try {
+         return getKeySortValue(db, key);
+      }
+      finally {
+         db.close();
+      }
+   }
+
+   private int getKeySortValue(Connection db, String key) throws SQLException {
+      int value;
 
       // get the sort value <=
       String prevKey = "";
       int prevValue = Integer.MIN_VALUE;
-      psGetPrev.setString(1, key);
-      ResultSet rs = psGetPrev.executeQuery();
-      if (rs.next()) {
-         prevKey = rs.getString(1);
-         prevValue = rs.getInt(2);
+      PreparedStatement psGetPrev = db.prepareStatement(SQL_GET_PREV);
+      try {
+         psGetPrev.setString(1, key);
+         ResultSet rs = psGetPrev.executeQuery();
+         queries++;
+         if (rs.next()) {
+            prevKey = rs.getString(1);
+            prevValue = rs.getInt(2);
+         }
+         rs.close();
+      }
+      finally {
+         psGetPrev.close();
       }
-      rs.close();
 
       // if the keys are equal, use the value
       if (key.equals(prevKey)) {
@@ -55,21 +282,120 @@ public class TitleSorter {
       // if keys aren't equal, get the next sort value >
       else {
          int nextValue = Integer.MAX_VALUE;
-         psGetNext.setString(1, key);
-         rs = psGetNext.executeQuery();
-         if (rs.next()) {
-            nextValue = rs.getInt(1);
+         PreparedStatement psGetNext = db.prepareStatement(SQL_GET_NEXT);
+         try {
+            psGetNext.setString(1, key);
+            ResultSet rs = psGetNext.executeQuery();
+            queries++;
+            if (rs.next()) {
+               nextValue = rs.getInt(1);
+            }
+            rs.close();
+         }
+         finally {
+            psGetNext.close();
+         }
+         if (rebalancer != null && rebalancer.isExhausted(prevValue, nextValue)) {
+            Integer rebalancedValue = rebalance(db, key);
+            if (rebalancedValue != null) {
+               return rebalancedValue;
+            }
          }
-         rs.close();
          // the value is the midway point
          value = (int)(((long)prevValue + (long)nextValue)/(long)2);
 
          // insert the new sort value for this title
-         psInsert.setString(1, key);
-         psInsert.setInt(2, value);
-         psInsert.executeUpdate();
+         PreparedStatement psInsert = db.prepareStatement(SQL_INSERT);
+         try {
+            psInsert.setString(1, key);
+            psInsert.setInt(2, value);
+            psInsert.executeUpdate();
+            queries++;
+         }
+         finally {
+            psInsert.close();
+         }
       }
 
       return value;
    }
+
+   // read up to limit keys on one side of the key, nearest first
+   private List<Map.Entry<String,Integer>> getRange(Connection db, String sql, String key, int limit) throws SQLException {
+      List<Map.Entry<String,Integer>> range = new ArrayList<Map.Entry<String,Integer>>();
+      PreparedStatement ps = db.prepareStatement(sql);
+      try {
+         ps.setString(1, key);
+         ps.setInt(2, limit);
+         ResultSet rs = ps.executeQuery();
+         queries++;
+         while (rs.next()) {
+            range.add(new AbstractMap.SimpleEntry<String,Integer>(rs.getString(1), rs.getInt(2)));
+         }
+         rs.close();
+      }
+      finally {
+         ps.close();
+      }
+      return range;
+   }
+
+   /**
+    * Give a new key a value by spreading it and the keys around it evenly between the keys on either side of them
+    * @return the key's value, or null if even the widest range doesn't have room for it
+    */
+   private Integer rebalance(Connection db, String key) throws SQLException {
+      long startNanos = System.nanoTime();
+      List<Map.Entry<String,Integer>> prevRange;
+      List<Map.Entry<String,Integer>> nextRange;
+      long lo;
+      long hi;
+      int radius = 4;
+      while (true) {
+         radius = Math.min(radius * 2, rebalancer.getMaxRadius());
+         // read one more key on each side than is renumbered, to bound the range
+         prevRange = getRange(db, SQL_GET_PREV_RANGE, key, radius + 1);
+         nextRange = getRange(db, SQL_GET_NEXT_RANGE, key, radius + 1);
+         lo = (prevRange.size() > radius ? prevRange.remove(radius).getValue() : Integer.MIN_VALUE);
+         hi = (nextRange.size() > radius ? nextRange.remove(radius).getValue() : Integer.MAX_VALUE);
+         boolean reachedEnds = (lo == Integer.MIN_VALUE && hi == Integer.MAX_VALUE);
+         if (rebalancer.isWideEnough(lo, hi, prevRange.size() + nextRange.size() + 1, radius, reachedEnds)) {
+            break;
+         }
+      }
+
+      List<Map.Entry<String,Integer>> range = new ArrayList<Map.Entry<String,Integer>>();
+      Collections.reverse(prevRange);
+      range.addAll(prevRange);
+      range.add(new AbstractMap.SimpleEntry<String,Integer>(key, null));
+      range.addAll(nextRange);
+      int[] newValues = rebalancer.spread(lo, hi, range.size());
+      if (newValues == null) {
+         logger.warning("No room to renumber the title sort keys around \"" + key + "\"");
+         return null;
+      }
+
+      // write the new key and the keys whose values changed
+      Map<String,Integer> keyValues = new LinkedHashMap<String,Integer>();
+      int value = 0;
+      for (int i = 0; i < range.size(); i++) {
+         Map.Entry<String,Integer> entry = range.get(i);
+         if (entry.getValue() == null) {
+            value = newValues[i];
+            keyValues.put(key, value);
+         }
+         else if (entry.getValue() != newValues[i]) {
+            keyValues.put(entry.getKey(), newValues[i]);
+         }
+      }
+      rebalancer.write(db, keyValues);
+      queries++;
+      for (Map.Entry<String,Integer> entry : range) {
+         if (entry.getValue() != null && keyValues.containsKey(entry.getKey())) {
+            rebalancer.addRenumberedValue(entry.getValue());
+         }
+      }
+      rebalancer.logRenumbering(key, keyValues.size() - 1, startNanos);
+      return value;
+   }
 }
@@ -5,11 +5,11 @@ import org.folg.names.search.Searcher;
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import org.werelate.util.ConnectionPool;
 import org.werelate.util.Utils;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
@@ -42,6 +42,7 @@ public class NameUpdater {
    private String dbUrl;
    private String dbUser;
    private String dbPassword;
+   private ConnectionPool pool;
 
    public NameUpdater() {
       try {
@@ -66,6 +67,14 @@ public class NameUpdater {
       }
    }
 
+   // connect the first time a name is updated, not when the handler is loaded
+   private synchronized ConnectionPool getPool() throws SQLException {
+      if (pool == null) {
+         pool = ConnectionPool.getInstance(dbUrl, dbUser, dbPassword);
+      }
+      return pool;
+   }
+
    private void updateName(PreparedStatement similarStatement, PreparedStatement logStatement, String userName, String tablePrefix,
                            Searcher searcher, String memcacheKeyPrefix, String namePiece,
                            Collection<String> adds, Collection<String> deletes, int flags, String comment) throws SQLException {
@@ -180,8 +189,8 @@ public class NameUpdater {
       PreparedStatement logStatement = null;
       if (trueAdds.size() > 0 || trueDeletes.size() > 0) {
          try {
-            // connect to database and set up prepared statements
-            conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+            // get a pooled connection and set up prepared statements
+            conn = getPool().getConnection();
             String sql = "insert into "+tablePrefix+"_similar_names (name, confirmed_variants, computer_variants) values(?,?,?) on duplicate key update confirmed_variants=values(confirmed_variants), computer_variants=values(computer_variants)";
             similarStatement = conn.prepareStatement(sql);
             sql = "insert into names_log (log_timestamp, log_user_text, log_name, log_type, log_adds, log_deletes, log_flags, log_comment) values (?,?,?,?,?,?,?,?)";
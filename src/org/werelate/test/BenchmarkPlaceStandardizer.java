@@ -0,0 +1,42 @@
+package org.werelate.test;
+
+import org.werelate.indexer.PlaceStandardizer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Standardizes places without memcache, the wiki or the index server: every place is its own redirect target,
+ * and a place's index tokens are the place itself followed by each of the places it's located in.
+ */
+public class BenchmarkPlaceStandardizer extends PlaceStandardizer
+{
+   public BenchmarkPlaceStandardizer() {
+      super(null, null, null, null);
+   }
+
+   protected Map<String,String> getFinalRedirectTargets(Set<String> places) {
+      Map<String,String> targets = new HashMap<String,String>();
+      for (String place : places) {
+         targets.put(place, place);
+      }
+      return targets;
+   }
+
+   protected Map<String,String[]> getPlaceIndexTokens(Set<String> places) {
+      Map<String,String[]> placeIndexTokens = new HashMap<String,String[]>();
+      for (String place : places) {
+         String[] levels = place.split(",");
+         String[] tokens = new String[levels.length];
+         tokens[0] = place;
+         int pos = 0;
+         for (int i = 1; i < levels.length; i++) {
+            pos = place.indexOf(',', pos) + 1;
+            tokens[i] = place.substring(pos).trim();
+         }
+         placeIndexTokens.put(place, tokens);
+      }
+      return placeIndexTokens;
+   }
+}
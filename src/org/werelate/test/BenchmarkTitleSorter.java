@@ -0,0 +1,32 @@
+package org.werelate.test;
+
+import org.werelate.indexer.TitleSorter;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns title sort values the way TitleSorter does, but keeps the sort keys in memory instead of the title_sort_key table
+ */
+public class BenchmarkTitleSorter extends TitleSorter
+{
+   private TreeMap<String,Integer> values = new TreeMap<String,Integer>();
+
+   public BenchmarkTitleSorter() {
+      super();
+   }
+
+   public synchronized int getSortValue(String title) {
+      String key = generateSortKey(title);
+      Map.Entry<String,Integer> prev = values.floorEntry(key);
+      if (prev != null && prev.getKey().equals(key)) {
+         return prev.getValue();
+      }
+      Map.Entry<String,Integer> next = values.higherEntry(key);
+      int prevValue = (prev == null ? Integer.MIN_VALUE : prev.getValue());
+      int nextValue = (next == null ? Integer.MAX_VALUE : next.getValue());
+      int value = (int)(((long)prevValue + (long)nextValue)/(long)2);
+      values.put(key, value);
+      return value;
+   }
+}
@@ -0,0 +1,274 @@
+package org.werelate.test;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Elements;
+import nu.xom.ParsingException;
+import org.apache.commons.cli.*;
+import org.apache.solr.common.SolrInputDocument;
+import org.werelate.util.Utils;
+import org.werelate.util.WikiReader;
+import org.werelate.util.WikiRevisionParser;
+import org.werelate.wiki.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Measures how fast the page indexers turn wiki pages into solr documents, and how much they allocate doing it.
+ *
+ * Reads a fixed corpus in MediaWiki dump format, then for each namespace in it runs that namespace's page indexer
+ * over its pages for a warm-up period followed by a measured period, and reports documents per second and bytes
+ * allocated per document. With -s it also times converting and standardizing the whole corpus a batch at a time.
+ * With -x it instead checks that the values read from each page's structured data match the ones XOM returns, with
+ * the attributes of each element as written and reversed, and exits with status 1 if any differ.
+ * Title sort values and place standardization use in-memory stand-ins, so no database, memcache, wiki or index server
+ * is needed, and the numbers cover only the conversion code. Run it with bin/benchmark.sh.
+ */
+public class ConversionBenchmark
+{
+   private static class Page {
+      private String pageId;
+      private int ns;
+      private String title;
+      private String timestamp;
+      private String text;
+
+      private Page(String pageId, int ns, String title, String timestamp, String text) {
+         this.pageId = pageId;
+         this.ns = ns;
+         this.title = title;
+         this.timestamp = timestamp;
+         this.text = text;
+      }
+   }
+
+   private static class CorpusParser implements WikiRevisionParser {
+      private Map<Integer,List<Page>> pages = new TreeMap<Integer,List<Page>>();
+
+      public void parse(String pageId, String title, int revId, String revTimestamp, String text) {
+         String namespace = Utils.splitNamespaceTitle(title)[0];
+         int ns = namespace.length() == 0 ? Utils.NS_MAIN : Utils.NAMESPACE_MAP.get(namespace);
+         List<Page> nsPages = pages.get(ns);
+         if (nsPages == null) {
+            nsPages = new ArrayList<Page>();
+            pages.put(ns, nsPages);
+         }
+         nsPages.add(new Page(pageId, ns, title, revTimestamp.replaceAll("[^0-9]", ""), text));
+      }
+   }
+
+   private Map<Integer,List<Page>> pages;
+   private Map<Integer,BasePageIndexer> indexers;
+   private ThreadMXBean threads;
+   // sum of document sizes, so the JIT can't discard the conversions
+   private long fields;
+
+   public ConversionBenchmark(String corpus) throws IOException, ParsingException, SQLException {
+      CorpusParser parser = new CorpusParser();
+      WikiReader wikiReader = new WikiReader();
+      wikiReader.setSkipRedirects(false);
+      wikiReader.addWikiRevisionParser(parser);
+      wikiReader.read(corpus);
+      pages = parser.pages;
+
+      BenchmarkTitleSorter titleSorter = new BenchmarkTitleSorter();
+      indexers = new HashMap<Integer,BasePageIndexer>();
+      for (int ns : pages.keySet()) {
+         BasePageIndexer indexer = createIndexer(ns);
+         indexer.setTitleSorter(titleSorter);
+         indexers.put(ns, indexer);
+      }
+      threads = ManagementFactory.getThreadMXBean();
+      fields = 0;
+   }
+
+   private static BasePageIndexer createIndexer(int ns) throws SQLException, IOException {
+      switch (ns) {
+         case Utils.NS_PERSON:
+            return new PersonPageIndexer(null);
+         case Utils.NS_FAMILY:
+            return new FamilyPageIndexer(null);
+         case Utils.NS_PLACE:
+            return new PlacePageIndexer(null);
+         case Utils.NS_SOURCE:
+            return new SourcePageIndexer(null);
+         case Utils.NS_IMAGE:
+            return new ImagePageIndexer(null);
+         default:
+            return new DefaultPageIndexer(null);
+      }
+   }
+
+   private long getAllocatedBytes() {
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return 0;
+   }
+
+   private SolrInputDocument convert(Page page) throws SQLException {
+      SolrInputDocument doc = indexers.get(page.ns).index(page.pageId, page.ns, page.title, page.timestamp, 0, page.text,
+                                                        Collections.<String>emptyList(), Collections.<String>emptyList());
+      if (doc != null) {
+         fields += doc.size();
+      }
+      return doc;
+   }
+
+   // convert the pages over and over for the given number of seconds; returns {docs, nanos, bytes}
+   private long[] convert(List<Page> nsPages, int seconds) throws SQLException {
+      long docs = 0;
+      long startBytes = getAllocatedBytes();
+      long startNanos = System.nanoTime();
+      long nanos;
+      do {
+         for (Page page : nsPages) {
+            convert(page);
+            docs++;
+         }
+         nanos = System.nanoTime() - startNanos;
+      } while (nanos < seconds * 1000000000L);
+      return new long[] {docs, nanos, getAllocatedBytes() - startBytes};
+   }
+
+   // convert and standardize the whole corpus a batch at a time for the given number of seconds
+   private long[] standardize(BenchmarkPlaceStandardizer standardizer, int batchSize, int seconds) throws SQLException, IOException, ParsingException {
+      List<Page> corpus = new ArrayList<Page>();
+      for (List<Page> nsPages : pages.values()) {
+         corpus.addAll(nsPages);
+      }
+      List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>();
+      long docs = 0;
+      long startBytes = getAllocatedBytes();
+      long startNanos = System.nanoTime();
+      long nanos;
+      do {
+         for (Page page : corpus) {
+            SolrInputDocument doc = convert(page);
+            if (doc != null) {
+               batch.add(doc);
+            }
+            if (batch.size() >= batchSize) {
+               standardizer.standardizePlaces(batch);
+               docs += batch.size();
+               batch.clear();
+            }
+         }
+         nanos = System.nanoTime() - startNanos;
+      } while (nanos < seconds * 1000000000L);
+      return new long[] {docs, nanos, getAllocatedBytes() - startBytes};
+   }
+
+   private static void report(String label, int pages, long[] result) {
+      long docs = Math.max(1, result[0]);
+      System.out.println(String.format("%-20s pages=%-4d docs=%-8d docs/sec=%-10.1f mean=%-8.1fus bytes/doc=%s",
+                         label, pages, result[0], result[0] * 1000000000.0 / result[1], result[1] / 1000.0 / docs,
+                         result[2] > 0 ? Long.toString(result[2] / docs) : "n/a"));
+   }
+
+   // reverse the order of each element's attributes, to check that results don't depend on it
+   private static void reverseAttributes(Element elm) {
+      int count = elm.getAttributeCount();
+      if (count > 1) {
+         Attribute[] attrs = new Attribute[count];
+         for (int i = 0; i < count; i++) {
+            attrs[i] = elm.getAttribute(0);
+            elm.removeAttribute(attrs[i]);
+         }
+         for (int i = count - 1; i >= 0; i--) {
+            elm.addAttribute(attrs[i]);
+         }
+      }
+      Elements children = elm.getChildElements();
+      for (int i = 0; i < children.size(); i++) {
+         reverseAttributes(children.get(i));
+      }
+   }
+
+   private static int check(StructuredDataExtractor extractor, Page page, String text) throws ParsingException, IOException {
+      List<String> differences = extractor.compareWithXom(text);
+      for (String difference : differences) {
+         System.out.println(page.title + ": " + difference);
+      }
+      return differences.size();
+   }
+
+   /**
+    * Compare the structured data values each indexer reads with the ones XOM returns
+    * @return the number of differences
+    */
+   public int checkExtraction() throws ParsingException, IOException {
+      int pageCount = 0;
+      int differences = 0;
+      for (Map.Entry<Integer,List<Page>> entry : pages.entrySet()) {
+         BasePageIndexer indexer = indexers.get(entry.getKey());
+         for (Page page : entry.getValue()) {
+            String text = indexer.getStructuredDataText(page.text);
+            if (text == null) {
+               continue;
+            }
+            pageCount++;
+            differences += check(indexer.getExtractor(), page, text);
+            Document xml = Utils.parseText(new Builder(), text, true);
+            reverseAttributes(xml.getRootElement());
+            differences += check(indexer.getExtractor(), page, xml.getRootElement().toXML());
+         }
+      }
+      System.out.println("Checked " + pageCount + " pages, " + differences + " differences");
+      return differences;
+   }
+
+   public void run(int warmupSeconds, int measureSeconds, boolean standardize, int batchSize) throws SQLException, IOException, ParsingException {
+      for (Map.Entry<Integer,List<Page>> entry : pages.entrySet()) {
+         List<Page> nsPages = entry.getValue();
+         String label = indexers.get(entry.getKey()).getClass().getSimpleName();
+         convert(nsPages, warmupSeconds);
+         report(label, nsPages.size(), convert(nsPages, measureSeconds));
+      }
+      if (standardize) {
+         BenchmarkPlaceStandardizer standardizer = new BenchmarkPlaceStandardizer();
+         int corpusSize = 0;
+         for (List<Page> nsPages : pages.values()) {
+            corpusSize += nsPages.size();
+         }
+         standardize(standardizer, batchSize, warmupSeconds);
+         report("convert+standardize", corpusSize, standardize(standardizer, batchSize, measureSeconds));
+      }
+      if (fields == 0) {
+         System.out.println("No documents were produced; check the corpus");
+      }
+   }
+
+   public static void main(String[] args) throws ParseException, IOException, ParsingException, SQLException {
+      Options opt = new Options();
+      opt.addOption("c", true, "corpus of pages in MediaWiki dump format (default ../conf/benchmark/pages.xml)");
+      opt.addOption("w", true, "warm-up seconds for each namespace (default 5)");
+      opt.addOption("m", true, "measured seconds for each namespace (default 10)");
+      opt.addOption("s", false, "also time converting and standardizing the whole corpus");
+      opt.addOption("b", true, "with -s, number of documents standardized at a time (default 50)");
+      opt.addOption("x", false, "check the structured data values against XOM instead of timing");
+      opt.addOption("h", false, "Print out help information");
+
+      BasicParser parser = new BasicParser();
+      CommandLine cl = parser.parse(opt, args);
+      if (cl.hasOption("h"))
+      {
+          System.out.println("Benchmark converting wiki pages to SOLR documents.");
+          HelpFormatter f = new HelpFormatter();
+          f.printHelp("OptionsTip", opt);
+          return;
+      }
+      ConversionBenchmark benchmark = new ConversionBenchmark(cl.getOptionValue("c", "../conf/benchmark/pages.xml"));
+      if (cl.hasOption("x")) {
+         System.exit(benchmark.checkExtraction() == 0 ? 0 : 1);
+      }
+      benchmark.run(Integer.parseInt(cl.getOptionValue("w", "5")), Integer.parseInt(cl.getOptionValue("m", "10")),
+                    cl.hasOption("s"), Integer.parseInt(cl.getOptionValue("b", "50")));
+   }
+}
@@ -0,0 +1,430 @@
+package org.werelate.util;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A pool of MySQL connections, shared by everyone in the process that connects to the same database as the same user.
+ *
+ * It's configured by c3p0.properties on the classpath and honors the c3p0 settings that file uses: minPoolSize,
+ * initialPoolSize, maxPoolSize, maxConnectionAge, maxIdleTime, maxIdleTimeExcessConnections and idleConnectionTestPeriod,
+ * plus checkoutTimeout. maxStatementsPerConnection is handed to the driver's prepared statement cache.
+ * Closing a connection from getConnection returns it to the pool. A connection that has been idle for
+ * idleConnectionTestPeriod seconds is tested before it's handed out, and a new one is opened if it fails the test.
+ * The pools are closed when the process exits.
+ *
+ * c3p0 itself isn't used because it isn't among the jars in lib; the indexer and the search plugins get by with
+ * this much of it, and keep the same settings file in case it's added later.
+ */
+public class ConnectionPool implements DataSource
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.util");
+
+   private static final int MAX_RETRIES = 5;
+   private static final int WAIT_MILLIS = 2000;
+   private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+   private static final Map<String,ConnectionPool> pools = new HashMap<String,ConnectionPool>();
+   private static boolean shutdownHookAdded = false;
+
+   // a physical connection and when it was opened and last returned
+   private static class PooledConnection {
+      private Connection conn;
+      private long createdMillis;
+      private long idleSinceMillis;
+
+      private PooledConnection(Connection conn) {
+         this.conn = conn;
+         this.createdMillis = System.currentTimeMillis();
+         this.idleSinceMillis = createdMillis;
+      }
+   }
+
+   private String url;
+   private Properties connectionProperties;
+   private int minPoolSize;
+   private int maxPoolSize;
+   private long maxConnectionAgeMillis;
+   private long maxIdleTimeMillis;
+   private long maxIdleTimeExcessMillis;
+   private long idleTestPeriodMillis;
+   private long checkoutTimeoutMillis;
+   // most recently returned first
+   private LinkedList<PooledConnection> idle;
+   private int total;
+   private boolean closed;
+
+   /**
+    * The pool for a database and user, created the first time it's asked for
+    */
+   public static synchronized ConnectionPool getInstance(String url, String username, String password) throws SQLException {
+      String key = url + "|" + username;
+      ConnectionPool pool = pools.get(key);
+      if (pool == null) {
+         if (!shutdownHookAdded) {
+            shutdownHookAdded = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("connection-pool-shutdown") {
+               public void run() {
+                  closeAll();
+               }
+            });
+         }
+         pool = new ConnectionPool(url, username, password, loadSettings());
+         pools.put(key, pool);
+      }
+      return pool;
+   }
+
+   /**
+    * Close every pool; their users share them, so this is done only when the process exits
+    */
+   private static void closeAll() {
+      List<ConnectionPool> all;
+      synchronized (ConnectionPool.class) {
+         all = new ArrayList<ConnectionPool>(pools.values());
+      }
+      for (ConnectionPool pool : all) {
+         pool.close();
+      }
+   }
+
+   private static Properties loadSettings() {
+      Properties settings = new Properties();
+      InputStream in = ConnectionPool.class.getClassLoader().getResourceAsStream("c3p0.properties");
+      if (in != null) {
+         try {
+            try {
+               settings.load(in);
+            }
+            finally {
+               in.close();
+            }
+         }
+         catch (IOException e) {
+            logger.warning("Unable to read c3p0.properties: " + e);
+         }
+      }
+      return settings;
+   }
+
+   private static int getSetting(Properties settings, String name, int defaultValue) {
+      return Integer.parseInt(settings.getProperty("c3p0." + name, Integer.toString(defaultValue)).trim());
+   }
+
+   private ConnectionPool(String url, String username, String password, Properties settings) throws SQLException {
+      this.url = url;
+      connectionProperties = new Properties();
+      if (username != null) {
+         connectionProperties.setProperty("user", username);
+      }
+      if (password != null) {
+         connectionProperties.setProperty("password", password);
+      }
+      int maxStatements = getSetting(settings, "maxStatementsPerConnection", 0);
+      if (maxStatements > 0) {
+         connectionProperties.setProperty("cachePrepStmts", "true");
+         connectionProperties.setProperty("prepStmtCacheSize", Integer.toString(maxStatements));
+      }
+      minPoolSize = getSetting(settings, "minPoolSize", 1);
+      maxPoolSize = Math.max(1, getSetting(settings, "maxPoolSize", 15));
+      // zero means no limit, as in c3p0
+      maxConnectionAgeMillis = getSetting(settings, "maxConnectionAge", 0) * 1000L;
+      maxIdleTimeMillis = getSetting(settings, "maxIdleTime", 0) * 1000L;
+      maxIdleTimeExcessMillis = getSetting(settings, "maxIdleTimeExcessConnections", 0) * 1000L;
+      idleTestPeriodMillis = getSetting(settings, "idleConnectionTestPeriod", 0) * 1000L;
+      checkoutTimeoutMillis = getSetting(settings, "checkoutTimeout", 0);
+      idle = new LinkedList<PooledConnection>();
+      total = 0;
+      closed = false;
+
+      int initialPoolSize = Math.min(maxPoolSize, getSetting(settings, "initialPoolSize", minPoolSize));
+      for (int i = 0; i < initialPoolSize; i++) {
+         idle.add(open());
+         total++;
+      }
+   }
+
+   // open a new connection, retrying a few times in case the database is restarting
+   private PooledConnection open() throws SQLException {
+      for (int i = 0; ; i++) {
+         try {
+            Connection conn = DriverManager.getConnection(url, connectionProperties);
+            conn.setAutoCommit(true);
+            return new PooledConnection(conn);
+         }
+         catch (SQLException e) {
+            if (i + 1 >= MAX_RETRIES) {
+               throw e;
+            }
+            logger.warning("Unable to connect to the database; retrying: " + e.getMessage());
+            Utils.sleep(WAIT_MILLIS);
+         }
+      }
+   }
+
+   private void discard(PooledConnection pc) {
+      try {
+         pc.conn.close();
+      }
+      catch (SQLException e) {
+         // ignore
+      }
+   }
+
+   // true if an idle connection has been idle or open too long to keep
+   private boolean isExpired(PooledConnection pc, long now, int idleCount) {
+      return (maxConnectionAgeMillis > 0 && now - pc.createdMillis > maxConnectionAgeMillis) ||
+             (maxIdleTimeMillis > 0 && now - pc.idleSinceMillis > maxIdleTimeMillis) ||
+             (maxIdleTimeExcessMillis > 0 && idleCount > minPoolSize && now - pc.idleSinceMillis > maxIdleTimeExcessMillis);
+   }
+
+   /**
+    * A connection from the pool; close it to return it
+    */
+   public Connection getConnection() throws SQLException {
+      PooledConnection pc = checkout();
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                                                new ConnectionHandler(pc));
+   }
+
+   private PooledConnection checkout() throws SQLException {
+      long deadline = (checkoutTimeoutMillis > 0 ? System.currentTimeMillis() + checkoutTimeoutMillis : 0);
+      while (true) {
+         PooledConnection pc = null;
+         boolean mayOpen = false;
+         synchronized (this) {
+            if (closed) {
+               throw new SQLException("Connection pool is closed");
+            }
+            long now = System.currentTimeMillis();
+            while (idle.size() > 0) {
+               PooledConnection candidate = idle.removeFirst();
+               if (isExpired(candidate, now, idle.size() + 1)) {
+                  total--;
+                  discard(candidate);
+               }
+               else {
+                  pc = candidate;
+                  break;
+               }
+            }
+            if (pc == null) {
+               if (total < maxPoolSize) {
+                  // count it now so other threads don't open more than the maximum
+                  total++;
+                  mayOpen = true;
+               }
+               else {
+                  long waitMillis = (deadline > 0 ? deadline - now : 0);
+                  if (deadline > 0 && waitMillis <= 0) {
+                     throw new SQLException("Timed out waiting for a database connection");
+                  }
+                  try {
+                     wait(waitMillis);
+                  }
+                  catch (InterruptedException e) {
+                     throw new RuntimeException("Interrupted waiting for a database connection", e);
+                  }
+                  continue;
+               }
+            }
+         }
+
+         if (mayOpen) {
+            try {
+               return open();
+            }
+            catch (SQLException e) {
+               synchronized (this) {
+                  total--;
+                  notifyAll();
+               }
+               throw e;
+            }
+         }
+         // test connections that have been idle a while, outside the lock
+         if (idleTestPeriodMillis > 0 && System.currentTimeMillis() - pc.idleSinceMillis >= idleTestPeriodMillis && !isValid(pc)) {
+            logger.info("Discarding a database connection that failed its test");
+            discard(pc);
+            synchronized (this) {
+               total--;
+               notifyAll();
+            }
+            continue;
+         }
+         return pc;
+      }
+   }
+
+   private boolean isValid(PooledConnection pc) {
+      try {
+         return pc.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+      }
+      catch (SQLException e) {
+         return false;
+      }
+   }
+
+   // put a connection back, unless it's broken or the pool has been closed
+   private void checkin(PooledConnection pc) {
+      boolean keep;
+      try {
+         if (!pc.conn.getAutoCommit()) {
+            // a transaction that wasn't ended is abandoned
+            pc.conn.rollback();
+            pc.conn.setAutoCommit(true);
+         }
+         keep = !pc.conn.isClosed();
+      }
+      catch (SQLException e) {
+         keep = false;
+      }
+      synchronized (this) {
+         if (keep && !closed) {
+            pc.idleSinceMillis = System.currentTimeMillis();
+            idle.addFirst(pc);
+         }
+         else {
+            total--;
+            discard(pc);
+         }
+         notifyAll();
+      }
+   }
+
+   /**
+    * Hands calls to the physical connection until it's closed, which closes the statements created on it
+    * and returns it to the pool instead
+    */
+   private class ConnectionHandler implements InvocationHandler {
+      private PooledConnection pc;
+      private List<Statement> statements;
+
+      private ConnectionHandler(PooledConnection pc) {
+         this.pc = pc;
+         this.statements = new ArrayList<Statement>();
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            synchronized (this) {
+               if (pc != null) {
+                  for (Statement statement : statements) {
+                     try {
+                        statement.close();
+                     }
+                     catch (SQLException e) {
+                        // ignore
+                     }
+                  }
+                  statements.clear();
+                  checkin(pc);
+                  pc = null;
+               }
+            }
+            return null;
+         }
+         else if (name.equals("isClosed")) {
+            return pc == null;
+         }
+         else if (name.equals("equals")) {
+            return proxy == args[0];
+         }
+         else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         }
+         else if (name.equals("toString")) {
+            return "Pooled " + (pc == null ? "closed connection" : pc.conn.toString());
+         }
+         if (pc == null) {
+            throw new SQLException("Connection has been returned to the pool");
+         }
+         try {
+            Object result = method.invoke(pc.conn, args);
+            if (result instanceof Statement) {
+               synchronized (this) {
+                  statements.add((Statement)result);
+               }
+            }
+            return result;
+         }
+         catch (InvocationTargetException e) {
+            throw e.getCause();
+         }
+      }
+   }
+
+   /**
+    * Close the idle connections, and the others as they're returned
+    */
+   private void close() {
+      synchronized (ConnectionPool.class) {
+         pools.values().remove(this);
+      }
+      synchronized (this) {
+         closed = true;
+         for (PooledConnection pc : idle) {
+            total--;
+            discard(pc);
+         }
+         idle.clear();
+         notifyAll();
+      }
+   }
+
+   public synchronized String toString() {
+      return "connections=" + total + " idle=" + idle.size() + " max=" + maxPoolSize;
+   }
+
+   public Connection getConnection(String username, String password) throws SQLException {
+      throw new SQLFeatureNotSupportedException("The pool's connections all use the same user");
+   }
+
+   public PrintWriter getLogWriter() {
+      return null;
+   }
+
+   public void setLogWriter(PrintWriter out) {
+   }
+
+   public void setLoginTimeout(int seconds) {
+   }
+
+   public int getLoginTimeout() {
+      return 0;
+   }
+
+   public Logger getParentLogger() {
+      return logger;
+   }
+
+   public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) {
+         return iface.cast(this);
+      }
+      throw new SQLException("Not a wrapper for " + iface.getName());
+   }
+
+   public boolean isWrapperFor(Class<?> iface) {
+      return iface.isInstance(this);
+   }
+}
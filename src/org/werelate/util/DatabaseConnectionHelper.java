@@ -1,5 +1,6 @@
 package org.werelate.util;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.util.logging.Logger;
 
@@ -11,12 +12,11 @@ public class DatabaseConnectionHelper
 {
    private static Logger logger = Logger.getLogger("org.werelate.util");
 
-   private static final int MAX_RETRIES = 5;
-   private static final int WAIT_MILLIS = 2000;
-
    private String url;
    private String username;
    private String password;
+   private ConnectionPool pool;
+   // held for callers of preparedStatement
    private Connection conn;
 
    public DatabaseConnectionHelper(String url, String username, String password) throws ClassNotFoundException, IllegalAccessException, InstantiationException
@@ -25,21 +25,55 @@ public class DatabaseConnectionHelper
       this.url = url;
       this.username = username;
       this.password = password;
+      this.pool = null;
       this.conn = null;
    }
 
    public void connect() throws SQLException
    {
-      conn = DriverManager.getConnection(url, username, password);
-      conn.setAutoCommit(true);
+      pool = ConnectionPool.getInstance(url, username, password);
+      // fail now if the database can't be reached
+      getConnection().close();
+   }
+
+   /**
+    * A connection from the pool shared by everyone using this database; close it as soon as you're done with it
+    * to return it to the pool, so that threads using the database at the same time don't wait for each other
+    */
+   public Connection getConnection() throws SQLException
+   {
+      return pool.getConnection();
+   }
+
+   public DataSource getDataSource()
+   {
+      return pool;
+   }
+
+   /**
+    * Prepare a statement on a connection that this helper holds until it's closed.
+    * Statements prepared this way share one connection; prefer getConnection.
+    */
+   public synchronized PreparedStatement preparedStatement(String sql) throws SQLException
+   {
+      if (conn == null) {
+         conn = getConnection();
+      }
+      return conn.prepareStatement(sql);
    }
 
-   public void startTransaction() throws SQLException
+   /**
+    * Start a transaction on the connection the statements from preparedStatement use
+    */
+   public synchronized void startTransaction() throws SQLException
    {
+      if (conn == null) {
+         conn = getConnection();
+      }
       conn.setAutoCommit(false);
    }
 
-   public void endTransaction(boolean commit) throws SQLException
+   public synchronized void endTransaction(boolean commit) throws SQLException
    {
       if (commit) {
          conn.commit();
@@ -50,12 +84,11 @@ public class DatabaseConnectionHelper
       conn.setAutoCommit(true);
    }
 
-   public PreparedStatement preparedStatement(String sql) throws SQLException
-   {
-      return conn.prepareStatement(sql);
-   }
-
-   public void close()
+   /**
+    * Return the held connection to the pool. The pool itself is shared with every other helper for the same database
+    * and user, so it stays open until the process exits.
+    */
+   public synchronized void close()
    {
       try
       {
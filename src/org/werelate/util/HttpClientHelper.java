@@ -1,21 +1,35 @@
 package org.werelate.util;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.util.EncodingUtil;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.logging.Logger;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.SequenceInputStream;
 import java.net.URLEncoder;
 
 import nu.xom.ParsingException;
 import nu.xom.Builder;
+import nu.xom.NodeFactory;
 
 /**
  * Created by Dallan Quass
@@ -29,37 +43,145 @@ public class HttpClientHelper
    private static final int TIMEOUT_MILLIS = 60000;
    private static final int MAX_RETRIES = 3;
    private static final int DELAY_MILLIS = 2000;
+   private static final int MAX_DELAY_MILLIS = 30000;
+   private static final int DEFAULT_MAX_CONNECTIONS = 8;
    private static final int BUF_SIZE = 32 * 1024;
    private static final int MAX_BUF_SIZE = 64 * 1024 * 1024;
 
-   private Builder builder;
+   // the index pipeline stages share a client, so each thread gets its own builder
+   private static final ThreadLocal<Builder> builder = new ThreadLocal<Builder>() {
+      protected Builder initialValue() {
+         return new Builder();
+      }
+   };
    private HttpClient client;
    private boolean addXmlHeader;
+   private AtomicInteger failedAttempts = new AtomicInteger();
+   private Random random = new Random();
+   // size of the last response read on each thread, for metrics
+   private static final ThreadLocal<Long> lastResponseBytes = new ThreadLocal<Long>() {
+      protected Long initialValue() {
+         return 0L;
+      }
+   };
+
+   private static class CountingInputStream extends FilterInputStream {
+      private long count = 0;
+
+      public CountingInputStream(InputStream in) {
+         super(in);
+      }
+
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count++;
+         }
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count += n;
+         }
+         return n;
+      }
+   }
+
+   /**
+    * Number of bytes in the last response body read by getResponse or parseResponse on this thread,
+    * as it came over the wire; for a compressed response that's the compressed size
+    */
+   public static long getLastResponseBytes() {
+      return lastResponseBytes.get();
+   }
+
+   /**
+    * The response body, decompressed if the server compressed it, or null if a compressed body is empty.
+    * Close it when done with it, to free the memory the decompressor holds outside the heap.
+    */
+   private static InputStream getResponseStream(HttpMethodBase m, CountingInputStream counter) throws IOException {
+      Header encoding = m.getResponseHeader("Content-Encoding");
+      String coding = (encoding == null ? "" : encoding.getValue().trim().toLowerCase());
+      boolean gzip = coding.equals("gzip") || coding.equals("x-gzip");
+      if (!gzip && !coding.equals("deflate")) {
+         return counter;
+      }
+      // a 204 or an error page can say it's compressed and have no body; chunked responses don't give a length
+      if (m.getResponseContentLength() == 0) {
+         return null;
+      }
+      PushbackInputStream in = new PushbackInputStream(counter, 2);
+      int first = in.read();
+      if (first < 0) {
+         return null;
+      }
+      if (gzip) {
+         in.unread(first);
+         return new GZIPInputStream(in, BUF_SIZE);
+      }
+      // deflate is supposed to be zlib-wrapped, but some servers send raw deflate data; tell them apart by the zlib header
+      int second = in.read();
+      boolean zlib = second >= 0 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+      if (second >= 0) {
+         in.unread(second);
+      }
+      in.unread(first);
+      // InflaterInputStream ends only the inflaters it creates itself
+      final Inflater inflater = new Inflater(!zlib);
+      return new InflaterInputStream(in, inflater, BUF_SIZE) {
+         public void close() throws IOException {
+            try {
+               super.close();
+            }
+            finally {
+               inflater.end();
+            }
+         }
+      };
+   }
 
    public static String getResponse(HttpMethodBase m) throws IOException
    {
-      InputStream s = m.getResponseBodyAsStream();
+      InputStream body = m.getResponseBodyAsStream();
+      if (body == null) {
+         lastResponseBytes.set(0L);
+         return null;
+      }
+      CountingInputStream counter = new CountingInputStream(body);
+      InputStream s = getResponseStream(m, counter);
+      if (s == null) {
+         lastResponseBytes.set(counter.count);
+         return null;
+      }
       int bytesRead = -1;
       int totalBytes = 0;
       int bytesToRead = BUF_SIZE;
       byte[] buf = new byte[BUF_SIZE];
-      while (true) {
-         bytesRead = s.read(buf, totalBytes, bytesToRead);
-         if (bytesRead < 0) {
-            break;
-         }
-         totalBytes += bytesRead;
-         bytesToRead -= bytesRead;
-         if (bytesToRead == 0) { // buffer full, so allocate more
-            if (buf.length * 2 > MAX_BUF_SIZE) {
-               throw new IOException("Response too long: "+m.getURI().toString());
+      try {
+         while (true) {
+            bytesRead = s.read(buf, totalBytes, bytesToRead);
+            if (bytesRead < 0) {
+               break;
+            }
+            totalBytes += bytesRead;
+            bytesToRead -= bytesRead;
+            if (bytesToRead == 0) { // buffer full, so allocate more
+               if (buf.length * 2 > MAX_BUF_SIZE) {
+                  throw new IOException("Response too long: "+m.getURI().toString());
+               }
+               byte[] temp = buf;
+               buf = new byte[temp.length * 2];
+               System.arraycopy(temp, 0, buf, 0, temp.length);
+               bytesToRead = temp.length;
             }
-            byte[] temp = buf;
-            buf = new byte[temp.length * 2];
-            System.arraycopy(temp, 0, buf, 0, temp.length);
-            bytesToRead = temp.length;
          }
       }
+      finally {
+         s.close();
+      }
+      lastResponseBytes.set(counter.count);
       if (totalBytes > 0) {
          return EncodingUtil.getString(buf, 0, totalBytes, m.getResponseCharSet());
       } else {
@@ -68,11 +190,24 @@ public class HttpClientHelper
    }
 
    public HttpClientHelper(boolean addXmlHeader) {
-      client = new HttpClient();
+      this(addXmlHeader, DEFAULT_MAX_CONNECTIONS);
+   }
+
+   /**
+    * @param maxConnections the number of connections to the server kept open for reuse by the threads sharing this client
+    */
+   public HttpClientHelper(boolean addXmlHeader, int maxConnections) {
+      MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+      HttpConnectionManagerParams params = connectionManager.getParams();
+      // the default is only two connections per host
+      params.setDefaultMaxConnectionsPerHost(maxConnections);
+      params.setMaxTotalConnections(Math.max(maxConnections, params.getMaxTotalConnections()));
+      // check that a kept-alive connection hasn't been closed by the server before reusing it
+      params.setStaleCheckingEnabled(true);
+      client = new HttpClient(connectionManager);
       client.getParams().setParameter("http.protocol.content-charset", "UTF-8");
       client.getParams().setParameter("http.socket.timeout", TIMEOUT_MILLIS);
       client.getParams().setParameter("http.connection.timeout", TIMEOUT_MILLIS);
-      builder = new Builder();
       this.addXmlHeader = addXmlHeader;
    }
 
@@ -81,6 +216,10 @@ public class HttpClientHelper
       if (m instanceof PostMethod && m.getRequestHeader("Content-Type") == null) {
          m.setRequestHeader("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
       }
+      // getResponse and parseResponse decompress the response
+      if (m.getRequestHeader("Accept-Encoding") == null) {
+         m.setRequestHeader("Accept-Encoding", "gzip, deflate");
+      }
 
       // retry loop
       String msg = null;
@@ -102,14 +241,68 @@ public class HttpClientHelper
             // do nothing
             msg = e.getMessage();
          }
-         Utils.sleep(DELAY_MILLIS);
+         failedAttempts.incrementAndGet();
+         // let the connection go back to the pool before trying again
+         m.releaseConnection();
+         if (i + 1 < MAX_RETRIES) {
+            Utils.sleep(getRetryDelayMillis(i));
+         }
       }
       throw new RuntimeException("Cannot communicate with server: "+msg);
    }
 
+   // exponential backoff with jitter, so threads that failed together don't all retry together
+   private int getRetryDelayMillis(int attempt) {
+      int delay = (int)Math.min((long)DELAY_MILLIS << attempt, MAX_DELAY_MILLIS);
+      synchronized (random) {
+         return delay / 2 + random.nextInt(delay / 2 + 1);
+      }
+   }
+
+   /**
+    * Number of requests that have had to be retried, for callers that want to back off when the server is struggling
+    */
+   public int getFailedAttempts() {
+      return failedAttempts.get();
+   }
+
+   /**
+    * Parse the response body as it is read from the connection instead of buffering it first.
+    * The factory sees each element as soon as it is complete, and can drop it from the tree to keep memory low.
+    */
+   public nu.xom.Document parseResponse(HttpMethodBase m, NodeFactory factory) throws ParsingException, IOException {
+      String charSet = m.getResponseCharSet();
+      InputStream in = m.getResponseBodyAsStream();
+      if (in == null) {
+         throw new IOException("Empty response: "+m.getURI().toString());
+      }
+      CountingInputStream counter = new CountingInputStream(in);
+      in = getResponseStream(m, counter);
+      if (in == null) {
+         lastResponseBytes.set(counter.count);
+         throw new IOException("Empty response: "+m.getURI().toString());
+      }
+      if (addXmlHeader) {
+         in = new SequenceInputStream(new ByteArrayInputStream(Utils.XML_HEADER.getBytes(charSet)), in);
+      }
+      InputStreamReader reader = new InputStreamReader(in, charSet);
+      try {
+         return new Builder(factory).build(reader);
+      }
+      catch (nu.xom.ParsingException e) {
+         logger.warning("Parsing exception: "+e.getMessage() +" while parsing response from: "+m.getURI().toString());
+         throw e;
+      }
+      finally {
+         lastResponseBytes.set(counter.count);
+         // frees the decompressor
+         reader.close();
+      }
+   }
+
    public nu.xom.Document parseText(String text) throws ParsingException, IOException {
       try {
-         return Utils.parseText(builder, text, addXmlHeader);
+         return Utils.parseText(builder.get(), text, addXmlHeader);
       }
       catch (nu.xom.ParsingException e) {
          logger.warning("Parsing exception: "+e.getMessage() +" while parsing: "+text);
@@ -0,0 +1,119 @@
+package org.werelate.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable set of lower-cased names, loaded once from a one-name-per-line resource and shared by everyone who
+ * asks for it. The names are packed back to back into a single char array, with an open-addressing hash table of
+ * indexes into it, so the 200k surnames take a few MB instead of the tens of MB a HashSet of Strings takes.
+ */
+public class NameDictionary
+{
+   private static final Map<String,NameDictionary> dictionaries = new HashMap<String,NameDictionary>();
+
+   // the names back to back; name i is chars[starts[i]] up to chars[starts[i+1]]
+   private char[] chars;
+   private int[] starts;
+   // 1 + the index of the name hashed to each slot, or 0 if the slot is empty
+   private int[] table;
+   private int mask;
+
+   /**
+    * The dictionary for a resource on the classpath, like surnames200k.txt, loaded the first time it's asked for
+    */
+   public static synchronized NameDictionary getInstance(String resourceName) throws IOException {
+      NameDictionary dictionary = dictionaries.get(resourceName);
+      if (dictionary == null) {
+         InputStream in = NameDictionary.class.getClassLoader().getResourceAsStream(resourceName);
+         if (in == null) {
+            throw new IOException("Name dictionary not found: " + resourceName);
+         }
+         List<String> names = new ArrayList<String>();
+         try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = r.readLine()) != null) {
+               names.add(line.toLowerCase());
+            }
+         }
+         finally {
+            in.close();
+         }
+         dictionary = new NameDictionary(names);
+         dictionaries.put(resourceName, dictionary);
+      }
+      return dictionary;
+   }
+
+   private NameDictionary(List<String> names) {
+      int length = 0;
+      for (String name : names) {
+         length += name.length();
+      }
+      int tableSize = Integer.highestOneBit(Math.max(names.size(), 1) * 2) * 2;
+      chars = new char[length];
+      starts = new int[names.size() + 1];
+      table = new int[tableSize];
+      mask = tableSize - 1;
+
+      int count = 0;
+      int pos = 0;
+      for (String name : names) {
+         int slot = find(name);
+         if (table[slot] == 0) {
+            name.getChars(0, name.length(), chars, pos);
+            starts[count] = pos;
+            pos += name.length();
+            starts[count + 1] = pos;
+            table[slot] = ++count;
+         }
+      }
+      // drop the room left by duplicates
+      if (count < names.size()) {
+         char[] packedChars = new char[pos];
+         System.arraycopy(chars, 0, packedChars, 0, pos);
+         chars = packedChars;
+         int[] packedStarts = new int[count + 1];
+         System.arraycopy(starts, 0, packedStarts, 0, count + 1);
+         starts = packedStarts;
+      }
+   }
+
+   // the slot holding the name, or the empty slot where it would go
+   private int find(String name) {
+      int h = name.hashCode();
+      int slot = (h ^ (h >>> 16)) & mask;
+      while (table[slot] != 0 && !matches(table[slot] - 1, name)) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   private boolean matches(int index, String name) {
+      int start = starts[index];
+      if (starts[index + 1] - start != name.length()) {
+         return false;
+      }
+      for (int i = 0; i < name.length(); i++) {
+         if (chars[start + i] != name.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   public boolean contains(String name) {
+      return table[find(name)] != 0;
+   }
+
+   public int size() {
+      return starts.length - 1;
+   }
+}
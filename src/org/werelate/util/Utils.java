@@ -291,7 +291,7 @@ public class Utils
    public static final String[] MONTH_NAMES =
            {"january", "febuary", "march", "april", "may", "june", "july", "august", "september", "october", "november", "december"};
 
-   private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+   public static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
 
    private static Logger logger = Logger.getLogger("org.werelate.util");
 
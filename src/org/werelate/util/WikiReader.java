@@ -22,21 +22,30 @@ public class WikiReader extends NodeFactory {
    private boolean inTitle;
    private boolean inText;
    private boolean inId;
+   private boolean inPageId;
+   private boolean inTimestamp;
    private boolean inRevision;
    private String title;
    private String text;
    private String id;
+   private String pageId;
+   private String timestamp;
    private int latestId;
    private String latestText;
+   private String latestTimestamp;
    private int cnt;
    private List<WikiPageParser> parsers;
+   private List<WikiRevisionParser> revisionParsers;
    private boolean skipRedirects;
 
     public WikiReader() {
       parsers = new ArrayList<WikiPageParser>();
+      revisionParsers = new ArrayList<WikiRevisionParser>();
       inTitle = false;
       inText = false;
       inId = false;
+      inPageId = false;
+      inTimestamp = false;
       inRevision = false;
       skipRedirects = true;
    }
@@ -59,6 +68,12 @@ public class WikiReader extends NodeFactory {
       else if (inId) {
          id = data;
       }
+      else if (inPageId) {
+         pageId = data;
+      }
+      else if (inTimestamp) {
+         timestamp = data;
+      }
       return EMPTY;
    }
 
@@ -85,8 +100,10 @@ public class WikiReader extends NodeFactory {
       boolean keep = false;
       if (name.equals("page")) {
          title = "";
+         pageId = "";
          latestId = 0;
          latestText = "";
+         latestTimestamp = "";
          keep = true;
       }
       else if (name.equals("title")) {
@@ -97,6 +114,15 @@ public class WikiReader extends NodeFactory {
          inRevision = true;
          id = "";
          text = "";
+         timestamp = "";
+         keep = true;
+      }
+      else if (!inRevision && name.equals("id") && pageId.length() == 0) {
+         inPageId = true;
+         keep = true;
+      }
+      else if (inRevision && name.equals("timestamp")) {
+         inTimestamp = true;
          keep = true;
       }
       else if (inRevision && name.equals("id") && id.length() == 0) {  // ignore ID under page, and later id's under contributor
@@ -125,6 +151,7 @@ public class WikiReader extends NodeFactory {
                if (idNumber > latestId) {
                   latestId = idNumber;
                   latestText = text;
+                  latestTimestamp = timestamp;
                }
                else {
                   logger.warning("IDs (" + latestId + " -> " + id + ") out of sequence for title: " + title);
@@ -158,11 +185,22 @@ public class WikiReader extends NodeFactory {
                   logger.severe("Parsing exception for title: " + title + " - " + e);
                }
             }
+            for (WikiRevisionParser parser:revisionParsers) {
+               try {
+                  parser.parse(pageId, title, latestId, latestTimestamp, latestText);
+               } catch (IOException e) {
+                  logger.severe("IOException: " + e);
+               } catch (ParsingException e) {
+                  logger.severe("Parsing exception for title: " + title + " - " + e);
+               }
+            }
          }
       }
       inTitle = false;
       inText = false;
       inId = false;
+      inPageId = false;
+      inTimestamp = false;
       return EMPTY;
    }
 
@@ -174,6 +212,14 @@ public class WikiReader extends NodeFactory {
       parsers.remove(parser);
    }
 
+   public void addWikiRevisionParser(WikiRevisionParser parser) {
+      revisionParsers.add(parser);
+   }
+
+   public void removeWikiRevisionParser(WikiRevisionParser parser) {
+      revisionParsers.remove(parser);
+   }
+
    public void read(String filename) throws ParsingException, IOException {
       InputStream in = new FileInputStream(filename);
       read(in);
@@ -0,0 +1,13 @@
+package org.werelate.util;
+
+import nu.xom.ParsingException;
+
+import java.io.IOException;
+
+/**
+ * Like WikiPageParser, but also receives the page id and the id and timestamp of the latest revision read from the dump.
+ * The timestamp is in the dump's format, e.g. 2008-04-28T12:00:00Z
+ */
+public interface WikiRevisionParser {
+   public void parse(String pageId, String title, int revId, String revTimestamp, String text) throws IOException, ParsingException;
+}
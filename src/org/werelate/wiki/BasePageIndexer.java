@@ -1,10 +1,14 @@
 package org.werelate.wiki;
 
 import org.apache.solr.common.SolrInputDocument;
+import org.werelate.indexer.IndexerMetrics;
+import org.werelate.indexer.StageMetrics;
 import org.werelate.indexer.TitleSorter;
 import org.werelate.util.Utils;
 import org.werelate.util.DatabaseConnectionHelper;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -29,23 +33,63 @@ public abstract class BasePageIndexer
 
    protected abstract String getTagName();
    protected abstract IndexInstruction[] getIndexInstructions();
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       // nothing -- override to add additional fields
    }
 
-   private Builder builder;
+   /**
+    * The XPaths that addCustomFields, getTitleIndex and getTitleSort query or get values for; they're extracted along
+    * with the index instructions' XPaths while the xml is parsed. Other XPaths still work, but need a XOM document.
+    */
+   protected String[] getCustomFieldXPaths() {
+      return new String[0];
+   }
+
+   private static final StageMetrics extractMetrics = IndexerMetrics.stage("extract");
+   private static final StageMetrics customFieldsMetrics = IndexerMetrics.stage("custom.fields");
    private TitleSorter titleSorter;
+   private boolean deferTitleSortValues;
    private NumberFormat nf;
+   private StructuredDataExtractor extractor;
 
+   /**
+    * @param conn used to look up title sort values; may be null if setTitleSorter is called before indexing
+    */
    public BasePageIndexer(DatabaseConnectionHelper conn) throws SQLException
    {
-      this.builder = new Builder();
-      this.titleSorter = new TitleSorter(conn);
+      this.titleSorter = (conn == null ? null : new TitleSorter(conn));
       this.nf = NumberFormat.getIntegerInstance();
       nf.setMinimumIntegerDigits(MAX_INT_DIGITS);
       nf.setGroupingUsed(false);
    }
 
+   /**
+    * The extractor for the XPaths this indexer reads from structured data
+    */
+   public synchronized StructuredDataExtractor getExtractor() {
+      if (extractor == null) {
+         List<String> xPaths = new ArrayList<String>();
+         for (IndexInstruction ii : getIndexInstructions()) {
+            xPaths.add(ii.getXPath());
+         }
+         xPaths.add(XPATH_SOURCED);
+         extractor = new StructuredDataExtractor(xPaths, Arrays.asList(getCustomFieldXPaths()));
+      }
+      return extractor;
+   }
+
+   /**
+    * The structured data in a page's contents, or null if it doesn't have any
+    */
+   public String getStructuredDataText(String contents) {
+      String tagName = getTagName();
+      if (Utils.isEmpty(tagName)) {
+         return null;
+      }
+      String[] fields = Utils.splitStructuredWikiText(tagName, contents.replace("<show_sources_images_notes/>",""));
+      return (Utils.isEmpty(fields[0]) ? null : fields[0]);
+   }
+
    public SolrInputDocument index(String pageId, int ns, String fullTitle, String revTimestamp, int popularity, String contents, List<String> users, List<String>trees) throws SQLException
    {
       String[] namespaceTitle = Utils.splitNamespaceTitle(fullTitle); // return namespace text in field[0], title in field[1]
@@ -82,7 +126,7 @@ public abstract class BasePageIndexer
       contents = contents.replace("<show_sources_images_notes/>",""); // no need to index/store this
       doc.addField(Utils.FLD_KEYWORDS, contents);
 
-      Document xml = null;
+      StructuredData xml = null;
 
       if (!redir) {
          m = CATEGORY_PATTERN.matcher(contents);
@@ -104,14 +148,14 @@ public abstract class BasePageIndexer
             String[] fields = Utils.splitStructuredWikiText(getTagName(), contents);
             contents = fields[1];
             if (!Utils.isEmpty(fields[0])) {
+               long startNanos = System.nanoTime();
                try
                {
-                  xml = Utils.parseText(builder, fields[0], true);
+                  xml = getExtractor().extract(fields[0]);
                   IndexInstruction[] indexInstructions = getIndexInstructions();
                   for (IndexInstruction ii : indexInstructions) {
-                     Nodes nodes = xml.query(ii.getXPath());
-                     for (int i = 0; i < nodes.size(); i++) {
-                        String val = nodes.get(i).getValue();
+                     List<String> values = xml.getValues(ii.getXPath());
+                     for (String val : values) {
                         int filterAction = ii.getFilterAction();
                         if (filterAction == IndexInstruction.FILTER_REMOVE_LINK) {
                            if (val.startsWith("[[")) val = val.substring(2);
@@ -132,11 +176,11 @@ public abstract class BasePageIndexer
                         }
                         doc.addField(ii.getFieldName(), val);
                      }
-                     if (nodes.size() == 0 && ii.getDefaultValue() != null) {
+                     if (values.size() == 0 && ii.getDefaultValue() != null) {
                         doc.addField(ii.getFieldName(), ii.getDefaultValue());
                      }
                   }
-
+                  extractMetrics.record(startNanos, 1, fields[0].length());
                }
                catch (ParsingException e)
                {
@@ -157,15 +201,35 @@ public abstract class BasePageIndexer
       doc.addField(Utils.FLD_TITLE, getTitleIndex(title, xml));
 
       // add title sort value (getTitleSort may be overridden)
-      doc.addField(Utils.FLD_TITLE_SORT_VALUE, titleSorter.getSortValue(getTitleSort(fullTitle, xml)));
+      if (deferTitleSortValues) {
+         // the caller replaces the title with its sort value
+         doc.addField(Utils.FLD_TITLE_SORT_VALUE, getTitleSort(fullTitle, xml));
+      }
+      else {
+         doc.addField(Utils.FLD_TITLE_SORT_VALUE, titleSorter.getSortValue(getTitleSort(fullTitle, xml)));
+      }
 
       // add any other custom fields
       // Note that PersonPageIndexer and FamilyPageIndexer rely on this being run after getTItleSort
+      long startNanos = System.nanoTime();
       addCustomFields(doc, title, xml, contents, redirTitle);
+      customFieldsMetrics.record(startNanos);
 
       return doc;
    }
 
+   public void setTitleSorter(TitleSorter titleSorter) {
+      this.titleSorter = titleSorter;
+   }
+
+   /**
+    * If true, documents are returned with the title to sort by in the title sort value field, so that the caller can
+    * look up the sort values of a whole batch of documents at once using TitleSorter.getSortValues
+    */
+   public void setDeferTitleSortValues(boolean deferTitleSortValues) {
+      this.deferTitleSortValues = deferTitleSortValues;
+   }
+
    protected String[][] getFamilyNamePieces(String titleSansIndexNumber) {
       String[][] familyNamePieces = new String[2][2];
       for (int i = 0; i < 2; i++) for (int j = 0; j < 2; j++) familyNamePieces[i][j] = null;
@@ -180,17 +244,17 @@ public abstract class BasePageIndexer
       return familyNamePieces;
    }
 
-   protected String getTitleIndex(String title, Document xml) {
+   protected String getTitleIndex(String title, StructuredData xml) {
       return title;
    }
 
-   protected String getTitleSort(String title, Document xml) {
+   protected String getTitleSort(String title, StructuredData xml) {
       return title;
    }
 
    private static final String XPATH_SOURCED = "//source_citation | //image | //note";
-   protected boolean isUnsourced(Document xml, String contents) {
-      Nodes nodes = xml.query(XPATH_SOURCED);
-      return (contents == null || contents.replace("<show_sources_images_notes/>","").trim().length() == 0) && nodes.size() == 0; // unsourced if no source citations, images, or notes
+   protected boolean isUnsourced(StructuredData xml, String contents) {
+      List<String> sourced = xml.getValues(XPATH_SOURCED);
+      return (contents == null || contents.replace("<show_sources_images_notes/>","").trim().length() == 0) && sourced.size() == 0; // unsourced if no source citations, images, or notes
    }
 }
@@ -8,7 +8,6 @@ import org.werelate.wiki.PersonPageIndexer;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 import nu.xom.Element;
 
@@ -65,7 +64,8 @@ public class FamilyPageIndexer extends BasePageIndexer
       new IndexInstruction(Utils.FLD_PRIMARY_IMAGE, "family/image[@primary='true']/@filename"),
    };
 
-   private String pageSortName = null;
+   // per thread, since pages may be indexed concurrently
+   private ThreadLocal<String> pageSortName = new ThreadLocal<String>();
 
    public FamilyPageIndexer(DatabaseConnectionHelper conn) throws SQLException
    {
@@ -80,13 +80,22 @@ public class FamilyPageIndexer extends BasePageIndexer
       return INSTRUCTIONS;
    }
 
+   private static final String[] CUSTOM_FIELD_XPATHS = {
+      "family/husband",
+      "family/wife"
+   };
+
+   protected String[] getCustomFieldXPaths() {
+      return CUSTOM_FIELD_XPATHS;
+   }
+
    /* Override base method. Note that this also stores the sort name for use in creating the surname index facet. */
-   protected String getTitleSort(String fullTitle, Document xml) {
-      pageSortName = getReversedFullname(fullTitle.substring(7), xml);
-      return "Family:" + pageSortName;
+   protected String getTitleSort(String fullTitle, StructuredData xml) {
+      pageSortName.set(getReversedFullname(fullTitle.substring(7), xml));
+      return "Family:" + pageSortName.get();
    }
 
-   protected static String getReversedFullname(String title, Document xml) {
+   protected static String getReversedFullname(String title, StructuredData xml) {
       String husbandName=null;
       String wifeName=null;
       Nodes nodes;
@@ -141,23 +150,19 @@ public class FamilyPageIndexer extends BasePageIndexer
    }
             
    // default husband and wife names from title in case they don't exist
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       if (xml != null) {
          String[][] namePieces = getFamilyNamePieces(SharedUtils.removeIndexNumber(title));
-         Nodes nodes = xml.query(XPATH_HUSBAND_GIVENNAME);
-         if (nodes.size() == 0) {
+         if (xml.getValues(XPATH_HUSBAND_GIVENNAME).size() == 0) {
             doc.addField(Utils.FLD_HUSBAND_GIVENNAME, !Utils.isEmpty(namePieces[0][0]) ? namePieces[0][0] : Utils.UNKNOWN_NAME);
          }
-         nodes = xml.query(XPATH_HUSBAND_SURNAME);
-         if (nodes.size() == 0) {
+         if (xml.getValues(XPATH_HUSBAND_SURNAME).size() == 0) {
             doc.addField(Utils.FLD_HUSBAND_SURNAME, !Utils.isEmpty(namePieces[0][1]) ? namePieces[0][1] : Utils.UNKNOWN_NAME);
          }
-         nodes = xml.query(XPATH_WIFE_GIVENNAME);
-         if (nodes.size() == 0) {
+         if (xml.getValues(XPATH_WIFE_GIVENNAME).size() == 0) {
             doc.addField(Utils.FLD_WIFE_GIVENNAME, !Utils.isEmpty(namePieces[1][0]) ? namePieces[1][0] : Utils.UNKNOWN_NAME);
          }
-         nodes = xml.query(XPATH_WIFE_SURNAME);
-         if (nodes.size() == 0) {
+         if (xml.getValues(XPATH_WIFE_SURNAME).size() == 0) {
             doc.addField(Utils.FLD_WIFE_SURNAME, !Utils.isEmpty(namePieces[1][1]) ? namePieces[1][1] : Utils.UNKNOWN_NAME);
          }
 
@@ -171,7 +176,7 @@ public class FamilyPageIndexer extends BasePageIndexer
          
          /* get surname index facet (first alphabetic letter of the page sort name) 
             Note: This relies on getTitleSort being run first. */
-         doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName));
+         doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName.get()));
       }
    }
 }
@@ -7,7 +7,6 @@ import org.werelate.wiki.PersonPageIndexer;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 import nu.xom.Element;
 
@@ -21,7 +20,7 @@ public class FamilyTalkPageIndexer extends BasePageIndexer
    private static final IndexInstruction[] INSTRUCTIONS = {
    };
 
-   private String pageSortName = null;
+   private ThreadLocal<String> pageSortName = new ThreadLocal<String>();
 
    public FamilyTalkPageIndexer(DatabaseConnectionHelper conn) throws SQLException
    {
@@ -38,15 +37,15 @@ public class FamilyTalkPageIndexer extends BasePageIndexer
    }
 
    /* Override base method. Note that this also stores the sort name for use in creating the surname index facet. */
-   protected String getTitleSort(String fullTitle, Document xml) {
-      pageSortName = FamilyPageIndexer.getReversedTitle(fullTitle.substring(12), null, null);
-      return "Family talk:" + pageSortName;
+   protected String getTitleSort(String fullTitle, StructuredData xml) {
+      pageSortName.set(FamilyPageIndexer.getReversedTitle(fullTitle.substring(12), null, null));
+      return "Family talk:" + pageSortName.get();
    }
             
    // add display name, surname index facet
    // Note: This relies on getTitleSort being run first. 
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
-      doc.addField(Utils.FLD_FULLNAME_STORED, pageSortName);
-      doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName));
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
+      doc.addField(Utils.FLD_FULLNAME_STORED, pageSortName.get());
+      doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName.get()));
    }
 }
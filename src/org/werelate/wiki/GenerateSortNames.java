@@ -78,7 +78,7 @@ public class GenerateSortNames implements WikiPageParser {
                surnameIndex = PersonPageIndexer.getSurnameIndex(pageSortName);
             }
             else {
-               pageSortName = FamilyPageIndexer.getReversedFullname(pageTitle, xml);
+               pageSortName = FamilyPageIndexer.getReversedFullname(pageTitle, xml == null ? null : new StructuredData(xml));
                titleSort = "Family:" + pageSortName;
                fullname = pageSortName;
                surnameIndex = PersonPageIndexer.getSurnameIndex(pageSortName);
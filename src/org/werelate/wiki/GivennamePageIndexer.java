@@ -8,7 +8,6 @@ import java.util.List;
 import java.util.Map;
 import java.sql.SQLException;
 
-import nu.xom.Document;
 
 /**
  * Created by Dallan Quass
@@ -34,7 +33,7 @@ public class GivennamePageIndexer extends BasePageIndexer
    }
 
    // add givenname from title
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       doc.addField(Utils.FLD_OTHER_GIVENNAME, title);
       doc.addField(Utils.FLD_GIVENNAME_TITLE, title);
    }
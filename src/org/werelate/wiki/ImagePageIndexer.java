@@ -7,7 +7,6 @@ import org.werelate.util.SharedUtils;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 import nu.xom.Element;
 
@@ -37,12 +36,20 @@ public class ImagePageIndexer extends BasePageIndexer
       return INSTRUCTIONS;
    }
 
+   private static final String[] CUSTOM_FIELD_XPATHS = {
+      "image_data/family/@title",
+      "image_data/person"
+   };
+
+   protected String[] getCustomFieldXPaths() {
+      return CUSTOM_FIELD_XPATHS;
+   }
+
    // index family name pieces; store fullname(s)
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       if (xml != null) {
-         Nodes nodes = xml.query("image_data/family/@title");
-         for (int i = 0; i < nodes.size(); i++) {
-            String familyTitle = SharedUtils.removeIndexNumber(nodes.get(i).getValue());
+         for (String value : xml.getValues("image_data/family/@title")) {
+            String familyTitle = SharedUtils.removeIndexNumber(value);
             doc.addField(Utils.FLD_FULLNAME_STORED, familyTitle);
             String[][] namePieces = getFamilyNamePieces(familyTitle);
             for (int j = 0; j < 2; j++) {
@@ -53,7 +60,7 @@ public class ImagePageIndexer extends BasePageIndexer
             }
          }
          // store fullname(s)
-         nodes = xml.query("image_data/person");
+         Nodes nodes = xml.query("image_data/person");
          if (nodes.size() > 0) {
             doc.addField(Utils.FLD_FULLNAME_STORED, PersonPageIndexer.getFullname((Element)nodes.get(0)));
          }
@@ -3,6 +3,7 @@ package org.werelate.wiki;
 import org.apache.solr.common.SolrInputDocument;
 import org.folg.names.search.Normalizer;
 import org.werelate.util.DatabaseConnectionHelper;
+import org.werelate.util.NameDictionary;
 import org.werelate.util.Utils;
 import org.werelate.util.SharedUtils;
 
@@ -15,7 +16,6 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 import nu.xom.Element;
 
@@ -52,28 +52,19 @@ public class PersonPageIndexer extends BasePageIndexer
    };
 
    private Normalizer normalizer;
-   private Set<String> allSurnames = new HashSet<String>();
-   private Set<String> allGivennames = new HashSet<String>();
-   private String pageSortName = null;
+   private NameDictionary allSurnames;
+   private NameDictionary allGivennames;
+   // getTitleSort and addCustomFields run on the same thread for a page, so keep the sort name per thread
+   private ThreadLocal<String> pageSortName = new ThreadLocal<String>();
 
    public PersonPageIndexer(DatabaseConnectionHelper conn) throws SQLException, IOException {
       super(conn);
 
       normalizer = Normalizer.getInstance();
 
-      InputStream in = this.getClass().getClassLoader().getResourceAsStream("surnames200k.txt");
-      BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-      while (r.ready()) {
-         allSurnames.add(r.readLine().toLowerCase());
-      }
-      in.close();
-
-      in = this.getClass().getClassLoader().getResourceAsStream("givennames70k.txt");
-      r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-      while (r.ready()) {
-         allGivennames.add(r.readLine().toLowerCase());
-      }
-      in.close();
+      // shared by all page indexers
+      allSurnames = NameDictionary.getInstance("surnames200k.txt");
+      allGivennames = NameDictionary.getInstance("givennames70k.txt");
    }
 
    protected String getTagName() {
@@ -84,25 +75,42 @@ public class PersonPageIndexer extends BasePageIndexer
       return INSTRUCTIONS;
    }
 
+   private static final String[] CUSTOM_FIELD_XPATHS = {
+      "person/name",
+      "person/alt_name",
+      "person/name/@surname",
+      "person/name/@given",
+      "person/gender",
+      "person/child_of_family/@title",
+      "person/spouse_of_family/@title",
+      "person/event_fact/@place",
+      "person/event_fact[@type='Birth']/@date",
+      "person/event_fact[@type='Christening']/@date"
+   };
+
+   protected String[] getCustomFieldXPaths() {
+      return CUSTOM_FIELD_XPATHS;
+   }
+
    private static final String[][] PARENT_NAMES = {
       {Utils.FLD_FATHER_GIVENNAME, Utils.FLD_FATHER_SURNAME},
       {Utils.FLD_MOTHER_GIVENNAME, Utils.FLD_MOTHER_SURNAME},
    };
 
    /* Override base method. Note that this also stores the sort name for use in creating the surname index facet. */
-   protected String getTitleSort(String fullTitle, Document xml) {
+   protected String getTitleSort(String fullTitle, StructuredData xml) {
       if (xml != null) {
          Nodes nodes  = xml.query("person/name");
          if (nodes.size() > 0) {
             Element name = (Element)nodes.get(0);
             if (!Utils.isEmpty(getNameAttr(name, "surname")) || !Utils.isEmpty(getNameAttr(name, "given"))) {
-               pageSortName = getReversedSortName(name);
-               return "Person:" + pageSortName;
+               pageSortName.set(getReversedSortName(name));
+               return "Person:" + pageSortName.get();
             }
          }
       }
-      pageSortName = getReversedTitle(fullTitle.substring(7));
-      return "Person:" + pageSortName;
+      pageSortName.set(getReversedTitle(fullTitle.substring(7)));
+      return "Person:" + pageSortName.get();
    }
 
    /* Name for sorting, starting with surname. Excludes prefix and suffix.
@@ -232,12 +240,12 @@ public class PersonPageIndexer extends BasePageIndexer
    }
 
    // add parents' names, spouse name, default person name, store fullname
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       if (xml != null) {
          // get parents names
-         Nodes nodes = xml.query("person/child_of_family/@title");
-         for (int i = 0; i < nodes.size(); i++) {
-            String[][] namePieces = getFamilyNamePieces(SharedUtils.removeIndexNumber(nodes.get(i).getValue()));
+         List<String> values = xml.getValues("person/child_of_family/@title");
+         for (String familyTitle : values) {
+            String[][] namePieces = getFamilyNamePieces(SharedUtils.removeIndexNumber(familyTitle));
             for (int j = 0; j < 2; j++) {
                for (int k = 0; k < 2; k++) {
                   doc.addField(PARENT_NAMES[j][k], !Utils.isEmpty(namePieces[j][k]) ? namePieces[j][k] : Utils.UNKNOWN_NAME);
@@ -245,7 +253,7 @@ public class PersonPageIndexer extends BasePageIndexer
             }
          }
          // default parents if they don't exist
-         if (nodes.size() == 0) {
+         if (values.size() == 0) {
             for (int i = 0; i < 2; i++) {
                for (int j = 0; j < 2; j++) {
                   doc.addField(PARENT_NAMES[i][j], Utils.UNKNOWN_NAME);
@@ -254,18 +262,18 @@ public class PersonPageIndexer extends BasePageIndexer
          }
 
          // get gender
-         nodes = xml.query("person/gender");
+         values = xml.getValues("person/gender");
          String gender = "?";
-         if (nodes.size() > 0) {
-            gender = nodes.get(0).getValue();
+         if (values.size() > 0) {
+            gender = values.get(0);
          }
          // get spouse name
          Set<String> marriedNames = new HashSet<String>();
          if (!"?".equals(gender)) {
             int j = ("M".equals(gender)) ? 1 : 0;
-            nodes = xml.query("person/spouse_of_family/@title");
-            for (int i = 0; i < nodes.size(); i++) {
-               String[][] namePieces = getFamilyNamePieces(SharedUtils.removeIndexNumber(nodes.get(i).getValue()));
+            values = xml.getValues("person/spouse_of_family/@title");
+            for (String familyTitle : values) {
+               String[][] namePieces = getFamilyNamePieces(SharedUtils.removeIndexNumber(familyTitle));
                doc.addField(Utils.FLD_SPOUSE_GIVENNAME, !Utils.isEmpty(namePieces[j][0]) ? namePieces[j][0] : Utils.UNKNOWN_NAME);
                String spouseSurname = !Utils.isEmpty(namePieces[j][1]) ? namePieces[j][1] : Utils.UNKNOWN_NAME;
                doc.addField(Utils.FLD_SPOUSE_SURNAME, spouseSurname);
@@ -280,18 +288,17 @@ public class PersonPageIndexer extends BasePageIndexer
          }
 
          // default spouse if it doesn't exist
-         if (nodes.size() == 0 || "?".equals(gender)) {
+         if (values.size() == 0 || "?".equals(gender)) {
             doc.addField(Utils.FLD_SPOUSE_SURNAME, Utils.UNKNOWN_NAME);
             doc.addField(Utils.FLD_SPOUSE_GIVENNAME, Utils.UNKNOWN_NAME);
          }
 
          // default person name if needed
          String[] names = SharedUtils.removeIndexNumber(title).split(" ", 2);
-         nodes = xml.query(XPATH_PERSON_SURNAME);
-         if (nodes.size() == 0) {
+         if (xml.getValues(XPATH_PERSON_SURNAME).size() == 0) {
             doc.addField(Utils.FLD_PERSON_SURNAME, names.length == 2 ? names[1] : Utils.UNKNOWN_NAME);
          }
-         nodes = xml.query(XPATH_PERSON_GIVENNAME);
+         Nodes nodes = xml.query(XPATH_PERSON_GIVENNAME);
          if (nodes.size() == 0) {
             doc.addField(Utils.FLD_PERSON_GIVENNAME, names.length >= 1 ? names[0] : Utils.UNKNOWN_NAME);
          }
@@ -350,9 +357,8 @@ public class PersonPageIndexer extends BasePageIndexer
          StringBuilder buf = new StringBuilder();
 
          // get name facets
-         nodes = xml.query("person/name/@surname");
-         for (int i = 0; i < nodes.size(); i++) {
-            String name = nodes.get(i).getValue();
+         values = xml.getValues("person/name/@surname");
+         for (String name : values) {
             if (name != null && name.length() > 0) {
                List<String> tokens = normalizer.normalize(name, true);
                if (tokens != null && tokens.size() > 0) {
@@ -376,10 +382,9 @@ public class PersonPageIndexer extends BasePageIndexer
          }
          doc.addField(Utils.FLD_PERSON_SURNAME_FACET, buf.toString());
 
-         nodes = xml.query("person/name/@given");
+         values = xml.getValues("person/name/@given");
          buf.setLength(0);
-         for (int i = 0; i < nodes.size(); i++) {
-            String name = nodes.get(i).getValue();
+         for (String name : values) {
             if (name != null && name.length() > 0) {
                List<String> tokens = normalizer.normalize(name, true);
                if (tokens != null && tokens.size() > 0) {
@@ -405,14 +410,13 @@ public class PersonPageIndexer extends BasePageIndexer
 
          /* get surname index facet (first alphabetic letter of the page sort name) 
             Note: This relies on getTitleSort being run first. */
-         doc.addField(Utils.FLD_SURNAME_INDEX_FACET, getSurnameIndex(pageSortName));
+         doc.addField(Utils.FLD_SURNAME_INDEX_FACET, getSurnameIndex(pageSortName.get()));
 
          // get place facets
-         nodes = xml.query("person/event_fact/@place");
+         values = xml.getValues("person/event_fact/@place");
          Set<String> countries = new HashSet<String>();
          Set<String> states = new HashSet<String>();
-         for (int i = 0; i < nodes.size(); i++) {
-            String place = nodes.get(i).getValue();
+         for (String place : values) {
             if (place != null && place.length() > 0) {
                int pos = place.indexOf("|");
                if (pos >= 0) {
@@ -460,14 +464,13 @@ public class PersonPageIndexer extends BasePageIndexer
          }
 
          // get date facets
-         nodes = xml.query("person/event_fact[@type='Birth']/@date");
-         if (nodes.size() == 0) {
-           nodes = xml.query("person/event_fact[@type='Christening']/@date");   // use Christening date if no Birth date (added Dec 2020 by Janet Bjorndahl)
+         values = xml.getValues("person/event_fact[@type='Birth']/@date");
+         if (values.size() == 0) {
+           values = xml.getValues("person/event_fact[@type='Christening']/@date");   // use Christening date if no Birth date (added Dec 2020 by Janet Bjorndahl)
          }  
          Set<String> centuries = new HashSet<String>();
          Set<String> decades = new HashSet<String>();
-         for (int i = 0; i < nodes.size(); i++) {
-            String date = nodes.get(i).getValue();
+         for (String date : values) {
             if (date != null && date.length() > 0) {
                // find a 3- or 4-digit year and turn it into a century (pre1600,...,1900,2000) and a decade (1600..2020)
                Matcher m = YEAR_PATTERN.matcher(date);
@@ -14,7 +14,6 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 import nu.xom.Element;
 
@@ -28,7 +27,7 @@ public class PersonTalkPageIndexer extends BasePageIndexer
    private static final IndexInstruction[] INSTRUCTIONS = {
    };
 
-   private String pageSortName = null;
+   private ThreadLocal<String> pageSortName = new ThreadLocal<String>();
 
    public PersonTalkPageIndexer(DatabaseConnectionHelper conn) throws SQLException, IOException {
       super(conn);
@@ -44,15 +43,15 @@ public class PersonTalkPageIndexer extends BasePageIndexer
    }
 
    /* Override base method. Note that this also stores the sort name for use in creating the surname index facet. */
-   protected String getTitleSort(String fullTitle, Document xml) {
-      pageSortName = PersonPageIndexer.getReversedTitle(fullTitle.substring(12));
-      return "Person talk:" + pageSortName;
+   protected String getTitleSort(String fullTitle, StructuredData xml) {
+      pageSortName.set(PersonPageIndexer.getReversedTitle(fullTitle.substring(12)));
+      return "Person talk:" + pageSortName.get();
    }
 
    // add display name, surname index facet
    // Note: This relies on getTitleSort being run first. 
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
-      doc.addField(Utils.FLD_FULLNAME_STORED, pageSortName);
-      doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName));
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
+      doc.addField(Utils.FLD_FULLNAME_STORED, pageSortName.get());
+      doc.addField(Utils.FLD_SURNAME_INDEX_FACET, PersonPageIndexer.getSurnameIndex(pageSortName.get()));
    }
 }
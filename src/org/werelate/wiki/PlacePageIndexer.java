@@ -8,8 +8,6 @@ import java.util.List;
 import java.util.regex.Pattern;
 import java.sql.SQLException;
 
-import nu.xom.Document;
-import nu.xom.Nodes;
 import nu.xom.Node;
 
 /**
@@ -39,6 +37,15 @@ public class PlacePageIndexer extends BasePageIndexer
       return INSTRUCTIONS;
    }
 
+   private static final String[] CUSTOM_FIELD_XPATHS = {
+      "place/alternate_name/@name",
+      "place/also_located_in/@place"
+   };
+
+   protected String[] getCustomFieldXPaths() {
+      return CUSTOM_FIELD_XPATHS;
+   }
+
    private float getPlaceNameBoost(String title) {
       int commas = Utils.countOccurrences(',', title);
       if (commas >= 3) {
@@ -50,7 +57,7 @@ public class PlacePageIndexer extends BasePageIndexer
       return 1.0f;
    }
 
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       // add fields from title
       String[] fields = title.split(",",2);
       doc.addField(Utils.FLD_PLACE_TITLE, title);
@@ -66,17 +73,14 @@ public class PlacePageIndexer extends BasePageIndexer
       }
       doc.addField(Utils.FLD_OTHER_PLACE, title);
       if (xml != null) {
-         Nodes nodes = xml.query("place/alternate_name/@name");
-         for (int i = 0; i < nodes.size(); i++) {
-            noUmlats = Utils.convertUmlats(nodes.get(i).getValue());
+         for (String name : xml.getValues("place/alternate_name/@name")) {
+            noUmlats = Utils.convertUmlats(name);
             if (noUmlats != null) {
                doc.addField(Utils.FLD_PLACE_NAME, noUmlats);
             }
          }
 
-         nodes = xml.query("place/also_located_in/@place");
-         for (int i = 0; i < nodes.size(); i++) {
-            String placeText = nodes.get(i).getValue();
+         for (String placeText : xml.getValues("place/also_located_in/@place")) {
             int pos = placeText.indexOf('|');
             if (pos >= 0) {
                placeText = placeText.substring(0, pos);
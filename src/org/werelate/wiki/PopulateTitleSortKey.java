@@ -26,6 +26,8 @@ import java.sql.Connection;
  * Its primary purpose is to be part of the Nov 2024 implementation of changes in sort order.
  * It can be used in the future if needed, but must first be reviewed to ensure that it is using up-to-date 
  * code for generating sort names. The execution plan must also be reviewed (see options below).
+ * The indexer renumbers the keys around a new key when the gap it falls into is used up (see TitleSortRebalancer),
+ * so a rebuild is only needed to respace the whole table.
  * 
  * The rebuild of title_sort_key is done in 4 steps:
  *    Run GenerateSortNames to generate sort titles from pages.xml, placing results in temp_sort_name
@@ -5,7 +5,6 @@ import org.werelate.util.Utils;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 import nu.xom.Nodes;
 
 /**
@@ -40,7 +39,7 @@ public class SourcePageIndexer extends BasePageIndexer
       return "source";
    }
 
-   protected String getTitleIndex(String title, Document xml) {
+   protected String getTitleIndex(String title, StructuredData xml) {
       StringBuilder buf = new StringBuilder();
       if (!Utils.isEmpty(title)) {
          buf.append(title);
@@ -58,4 +57,12 @@ public class SourcePageIndexer extends BasePageIndexer
    protected IndexInstruction[] getIndexInstructions() {
       return INSTRUCTIONS;
    }
+
+   private static final String[] CUSTOM_FIELD_XPATHS = {
+      "source/source_title"
+   };
+
+   protected String[] getCustomFieldXPaths() {
+      return CUSTOM_FIELD_XPATHS;
+   }
 }
@@ -0,0 +1,149 @@
+package org.werelate.wiki;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+import nu.xom.ParsingException;
+import org.werelate.util.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page's structured data, together with the results of the XPaths its page indexer extracted while parsing it.
+ *
+ * getValues and query return the extracted results for those XPaths. Any other XPath is evaluated by XOM against
+ * a document that's built the first time one is queried.
+ */
+public class StructuredData
+{
+   /**
+    * One extracted result: an attribute's name and value, an element's text, or an element
+    */
+   static class Value {
+      // which element, in document order, the result came from
+      private int owner;
+      private String attr;
+      private String value;
+      private Element element;
+      private StringBuilder text;
+
+      Value(int owner, String attr, String value, Element element) {
+         this.owner = owner;
+         this.attr = attr;
+         this.value = value;
+         this.element = element;
+      }
+
+      int getOwner() {
+         return owner;
+      }
+
+      String getAttr() {
+         return attr;
+      }
+
+      void appendText(char[] ch, int start, int length) {
+         if (text == null) {
+            text = new StringBuilder();
+         }
+         text.append(ch, start, length);
+      }
+
+      void endText() {
+         value = (text == null ? "" : text.toString());
+         text = null;
+      }
+   }
+
+   private String text;
+   private Document xml;
+   private StructuredDataExtractor extractor;
+   private List<List<Value>> results;
+
+   /**
+    * Structured data that has already been parsed; every XPath is evaluated against the document
+    */
+   public StructuredData(Document xml) {
+      this.xml = xml;
+      this.text = null;
+      this.extractor = null;
+      this.results = null;
+   }
+
+   StructuredData(String text, StructuredDataExtractor extractor, List<List<Value>> results) {
+      this.xml = null;
+      this.text = text;
+      this.extractor = extractor;
+      this.results = results;
+   }
+
+   public synchronized Document getDocument() {
+      if (xml == null) {
+         try {
+            xml = Utils.parseText(new Builder(), text, true);
+         }
+         catch (ParsingException e) {
+            // the text was parsed once already, so this shouldn't happen
+            throw new RuntimeException("Unable to parse structured data: " + e.getMessage());
+         }
+         catch (IOException e) {
+            throw new RuntimeException("Unable to parse structured data: " + e.getMessage());
+         }
+      }
+      return xml;
+   }
+
+   private int getIndex(String xPath) {
+      return extractor == null ? -1 : extractor.getIndex(xPath);
+   }
+
+   /**
+    * The string values of the nodes the XPath selects, like nodes.get(i).getValue() for each of query's nodes
+    */
+   public List<String> getValues(String xPath) {
+      int index = getIndex(xPath);
+      if (index < 0) {
+         Nodes nodes = getDocument().query(xPath);
+         List<String> values = new ArrayList<String>(nodes.size());
+         for (int i = 0; i < nodes.size(); i++) {
+            values.add(nodes.get(i).getValue());
+         }
+         return values;
+      }
+      List<String> values = new ArrayList<String>(results.get(index).size());
+      for (Value value : results.get(index)) {
+         values.add(value.element != null ? value.element.getValue() : value.value);
+      }
+      return values;
+   }
+
+   /**
+    * The nodes the XPath selects. Extracted attributes are returned as new attributes that don't belong to an element,
+    * and extracted elements don't belong to a document, so callers can read them but not navigate from them.
+    * Prefer getValues for XPaths that select attributes; it doesn't create any nodes.
+    */
+   public Nodes query(String xPath) {
+      int index = getIndex(xPath);
+      if (index < 0) {
+         return getDocument().query(xPath);
+      }
+      Nodes nodes = new Nodes();
+      for (Value value : results.get(index)) {
+         if (value.element != null) {
+            nodes.append(value.element);
+         }
+         else if (value.attr != null) {
+            nodes.append(new Attribute(value.attr, value.value));
+         }
+         else {
+            // the extractor was asked only for this XPath's values
+            return getDocument().query(xPath);
+         }
+      }
+      return nodes;
+   }
+}
@@ -0,0 +1,541 @@
+package org.werelate.wiki;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nu.xom.ParsingException;
+import org.werelate.util.Utils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The XPaths a page indexer reads from a page's structured data, compiled once into a tree of element paths,
+ * so that all of them can be answered while the page's xml is being parsed instead of one XPath evaluation each.
+ *
+ * The xml is read with a SAX parser and no document is built. Attribute values and element text are kept as strings;
+ * XOM elements are built only for the XPaths the caller asks for elements from.
+ *
+ * Handles the kinds of paths the page indexers use: child steps starting from the root element (person/event_fact),
+ * //name, a final @attribute, unions, [n] positions, and predicates comparing attributes with = or != joined by
+ * and/or. Paths that don't fit are evaluated by XOM against a document built when they're first queried.
+ * Results come in the order XOM returns them: document order, except that the attributes of one element selected by
+ * a union are in the order of the first branch selecting each of them.
+ */
+public class StructuredDataExtractor
+{
+   private static final Logger logger = Logger.getLogger("org.werelate.wiki");
+   private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][\\w\\-.]*");
+   private static final Pattern STEP_PATTERN = Pattern.compile("([A-Za-z_][\\w\\-.]*)(?:\\[(.*)\\])?");
+   private static final Pattern TERM_PATTERN = Pattern.compile("\\s*@([A-Za-z_][\\w\\-.]*)\\s*(!=|=)\\s*'([^']*)'\\s*(and|or)?");
+
+   private static class Step {
+      private String name;
+      private int position;
+      private String[] attrs;
+      private String[] values;
+      private boolean[] negated;
+      private boolean all;
+
+      private boolean matches(Attributes elmAttrs, int elmPosition) {
+         if (position > 0 && position != elmPosition) {
+            return false;
+         }
+         if (attrs == null) {
+            return true;
+         }
+         for (int i = 0; i < attrs.length; i++) {
+            // as in XPath, a comparison with a missing attribute is false whether it's = or !=
+            String value = elmAttrs.getValue("", attrs[i]);
+            boolean match = (value != null && value.equals(values[i]) != negated[i]);
+            if (match != all) {
+               return match;
+            }
+         }
+         return all;
+      }
+   }
+
+   private static class Handler {
+      private int index;
+      // which branch of its XPath's union this is
+      private int branch;
+      private Step[] steps;
+      private String attr;
+      private boolean descendant;
+      private boolean buildElement;
+
+      private Handler(int index, int branch, Step[] steps, String attr, boolean descendant) {
+         this.index = index;
+         this.branch = branch;
+         this.steps = steps;
+         this.attr = attr;
+         this.descendant = descendant;
+         this.buildElement = false;
+      }
+
+      // attrs and position are the current element's; the ancestors' are in levels
+      private boolean matches(List<Level> levels, Attributes attrs, int position) {
+         int last = steps.length - 1;
+         if (!steps[last].matches(attrs, position)) {
+            return false;
+         }
+         for (int i = 0; i < last; i++) {
+            if (!steps[i].matches(levels.get(i).attrs, levels.get(i).position)) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   // a node in the tree of element paths
+   private static class PathNode {
+      private Map<String,PathNode> children = new HashMap<String,PathNode>();
+      private List<Handler> handlers = new ArrayList<Handler>();
+   }
+
+   // an open element while parsing
+   private static class Level {
+      private PathNode pathNode;
+      private int position;
+      private Attributes attrs;
+      private Map<String,Integer> childCounts;
+      private Element element;
+      private List<StructuredData.Value> texts;
+   }
+
+   private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+
+   private static final Comparator<Handler> BRANCH_ORDER = new Comparator<Handler>() {
+      public int compare(Handler h1, Handler h2) {
+         return h1.branch - h2.branch;
+      }
+   };
+
+   // SAX parsers aren't thread-safe, and a page indexer may be shared by several indexing threads
+   private static final ThreadLocal<SAXParser> parser = new ThreadLocal<SAXParser>() {
+      protected SAXParser initialValue() {
+         try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newSAXParser();
+         }
+         catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+         }
+         catch (SAXException e) {
+            throw new RuntimeException(e);
+         }
+      }
+   };
+
+   private Map<String,Integer> indexes;
+   // handlers for absolute paths by element path, like person/event_fact, and for //name paths by element name
+   private PathNode pathRoot;
+   private Map<String,List<Handler>> nameHandlers;
+   // whether any step has a [n] position, or a predicate on an element other than the one selected
+   private boolean countPositions;
+   private boolean keepAncestorAttrs;
+
+   /**
+    * @param valueXPaths XPaths whose results will only be read as strings, with StructuredData.getValues
+    * @param elementXPaths XPaths whose results may be queried as elements, with StructuredData.query
+    */
+   public StructuredDataExtractor(Collection<String> valueXPaths, Collection<String> elementXPaths) {
+      indexes = new HashMap<String,Integer>();
+      pathRoot = new PathNode();
+      nameHandlers = new HashMap<String,List<Handler>>();
+      countPositions = false;
+      keepAncestorAttrs = false;
+      List<String> xPaths = new ArrayList<String>(elementXPaths);
+      xPaths.addAll(valueXPaths);
+      for (String xPath : xPaths) {
+         if (indexes.containsKey(xPath)) {
+            continue;
+         }
+         List<Handler> handlers = compile(xPath, indexes.size());
+         if (handlers == null) {
+            logger.fine("XPath will be evaluated by XOM: " + xPath);
+            continue;
+         }
+         indexes.put(xPath, indexes.size());
+         for (Handler handler : handlers) {
+            handler.buildElement = (handler.attr == null && elementXPaths.contains(xPath));
+            for (int i = 0; i < handler.steps.length; i++) {
+               Step step = handler.steps[i];
+               countPositions |= (step.position > 0);
+               keepAncestorAttrs |= (i < handler.steps.length - 1 && step.attrs != null);
+            }
+            if (handler.descendant) {
+               List<Handler> list = nameHandlers.get(handler.steps[0].name);
+               if (list == null) {
+                  list = new ArrayList<Handler>();
+                  nameHandlers.put(handler.steps[0].name, list);
+               }
+               list.add(handler);
+            }
+            else {
+               PathNode pathNode = pathRoot;
+               for (Step step : handler.steps) {
+                  PathNode child = pathNode.children.get(step.name);
+                  if (child == null) {
+                     child = new PathNode();
+                     pathNode.children.put(step.name, child);
+                  }
+                  pathNode = child;
+               }
+               pathNode.handlers.add(handler);
+            }
+         }
+      }
+   }
+
+   // split on sep, except inside predicates and quotes
+   private static List<String> split(String s, char sep) {
+      List<String> parts = new ArrayList<String>();
+      int depth = 0;
+      boolean quoted = false;
+      int start = 0;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '\'') {
+            quoted = !quoted;
+         }
+         else if (!quoted && c == '[') {
+            depth++;
+         }
+         else if (!quoted && c == ']') {
+            depth--;
+         }
+         else if (!quoted && depth == 0 && c == sep) {
+            parts.add(s.substring(start, i));
+            start = i + 1;
+         }
+      }
+      parts.add(s.substring(start));
+      return parts;
+   }
+
+   // returns null if the path isn't one we handle
+   private static List<Handler> compile(String xPath, int index) {
+      List<Handler> handlers = new ArrayList<Handler>();
+      for (String branch : split(xPath, '|')) {
+         branch = branch.trim();
+         boolean descendant = branch.startsWith("//");
+         if (descendant) {
+            branch = branch.substring(2);
+         }
+         List<String> parts = split(branch, '/');
+         String attr = null;
+         String last = parts.get(parts.size() - 1).trim();
+         if (last.startsWith("@")) {
+            attr = last.substring(1);
+            if (!NAME_PATTERN.matcher(attr).matches()) {
+               return null;
+            }
+            parts.remove(parts.size() - 1);
+         }
+         if (parts.size() == 0 || (descendant && parts.size() > 1)) {
+            return null;
+         }
+         Step[] steps = new Step[parts.size()];
+         for (int i = 0; i < steps.length; i++) {
+            steps[i] = compileStep(parts.get(i).trim());
+            if (steps[i] == null) {
+               return null;
+            }
+         }
+         handlers.add(new Handler(index, handlers.size(), steps, attr, descendant));
+      }
+      return handlers;
+   }
+
+   private static Step compileStep(String part) {
+      Matcher m = STEP_PATTERN.matcher(part);
+      if (!m.matches()) {
+         return null;
+      }
+      Step step = new Step();
+      step.name = m.group(1);
+      String predicate = m.group(2);
+      if (predicate == null) {
+         return step;
+      }
+      predicate = predicate.trim();
+      if (predicate.matches("\\d+")) {
+         step.position = Integer.parseInt(predicate);
+         return step;
+      }
+
+      List<String[]> terms = new ArrayList<String[]>();
+      String conjunction = null;
+      Matcher t = TERM_PATTERN.matcher(predicate);
+      int pos = 0;
+      while (true) {
+         t.region(pos, predicate.length());
+         if (!t.lookingAt()) {
+            return null;
+         }
+         terms.add(new String[] {t.group(1), t.group(2), t.group(3)});
+         pos = t.end();
+         if (t.group(4) == null) {
+            break;
+         }
+         if (conjunction != null && !conjunction.equals(t.group(4))) {
+            return null; // mixed and/or would need precedence
+         }
+         conjunction = t.group(4);
+      }
+      if (pos < predicate.length()) {
+         return null;
+      }
+      step.all = "and".equals(conjunction);
+      step.attrs = new String[terms.size()];
+      step.values = new String[terms.size()];
+      step.negated = new boolean[terms.size()];
+      for (int i = 0; i < terms.size(); i++) {
+         step.attrs[i] = terms.get(i)[0];
+         step.negated[i] = terms.get(i)[1].equals("!=");
+         step.values[i] = terms.get(i)[2];
+      }
+      return step;
+   }
+
+   /**
+    * @return the position of the XPath's results in the extracted data, or -1 if it wasn't compiled
+    */
+   int getIndex(String xPath) {
+      Integer index = indexes.get(xPath);
+      return index == null ? -1 : index;
+   }
+
+   /**
+    * Parse the structured data, collecting the results of every compiled XPath
+    */
+   public StructuredData extract(String text) throws ParsingException, IOException {
+      List<List<StructuredData.Value>> results = new ArrayList<List<StructuredData.Value>>(indexes.size());
+      for (int i = 0; i < indexes.size(); i++) {
+         results.add(new ArrayList<StructuredData.Value>());
+      }
+      try {
+         parser.get().parse(new InputSource(new StringReader(text)), new Extraction(results));
+      }
+      catch (SAXParseException e) {
+         throw new ParsingException(e.getMessage(), e.getSystemId(), e.getLineNumber(), e.getColumnNumber(), e);
+      }
+      catch (SAXException e) {
+         throw new ParsingException(e.getMessage(), e);
+      }
+      return new StructuredData(text, this, results);
+   }
+
+   // attribute names too, so the check sees the order of attributes that have the same value
+   private static List<String> describe(Nodes nodes) {
+      List<String> descriptions = new ArrayList<String>(nodes.size());
+      for (int i = 0; i < nodes.size(); i++) {
+         Node node = nodes.get(i);
+         descriptions.add(node instanceof Attribute ? "@" + ((Attribute)node).getQualifiedName() + "=" + node.getValue()
+                                                    : node.toXML());
+      }
+      return descriptions;
+   }
+
+   /**
+    * Compare the results extracted from the structured data with the ones XOM returns for each compiled XPath,
+    * nodes and order both, for checking the extractor against a corpus
+    * @return a description of each XPath whose results differ
+    */
+   public List<String> compareWithXom(String text) throws ParsingException, IOException {
+      StructuredData extracted = extract(text);
+      Document xml = Utils.parseText(new Builder(), text, true);
+      List<String> differences = new ArrayList<String>();
+      for (String xPath : indexes.keySet()) {
+         Nodes nodes = xml.query(xPath);
+         List<String> expected = new ArrayList<String>(nodes.size());
+         for (int i = 0; i < nodes.size(); i++) {
+            expected.add(nodes.get(i).getValue());
+         }
+         List<String> actual = extracted.getValues(xPath);
+         if (!actual.equals(expected)) {
+            differences.add(xPath + ": expected values " + expected + " but extracted " + actual);
+         }
+         else if (!describe(extracted.query(xPath)).equals(describe(nodes))) {
+            differences.add(xPath + ": expected nodes " + describe(nodes) + " but extracted " +
+                            describe(extracted.query(xPath)));
+         }
+      }
+      return differences;
+   }
+
+   private class Extraction extends DefaultHandler {
+      private List<List<StructuredData.Value>> results;
+      private List<Level> levels;
+      private List<Handler> matched;
+      // the innermost element being built for an XPath that selects elements
+      private Element element;
+      // results that are the text of elements that haven't ended yet
+      private List<StructuredData.Value> texts;
+      private int elementCount;
+
+      private Extraction(List<List<StructuredData.Value>> results) {
+         this.results = results;
+         this.levels = new ArrayList<Level>();
+         this.matched = new ArrayList<Handler>();
+         this.element = null;
+         this.texts = new ArrayList<StructuredData.Value>();
+         this.elementCount = 0;
+      }
+
+      public void startElement(String uri, String localName, String qName, Attributes attrs) {
+         elementCount++;
+         Level parent = (levels.size() > 0 ? levels.get(levels.size() - 1) : null);
+         Level level = new Level();
+         // XPath name tests without a prefix only match elements and attributes that aren't in a namespace
+         boolean noNamespace = (uri.length() == 0);
+         if (noNamespace) {
+            level.pathNode = (parent == null ? pathRoot : parent.pathNode);
+            level.pathNode = (level.pathNode == null ? null : level.pathNode.children.get(localName));
+         }
+         if (countPositions && parent != null) {
+            if (parent.childCounts == null) {
+               parent.childCounts = new HashMap<String,Integer>();
+            }
+            Integer count = parent.childCounts.get(qName);
+            level.position = (count == null ? 1 : count + 1);
+            parent.childCounts.put(qName, level.position);
+         }
+         else {
+            level.position = 1;
+         }
+         level.attrs = (keepAncestorAttrs && attrs.getLength() > 0 ? new AttributesImpl(attrs) : NO_ATTRIBUTES);
+
+         matched.clear();
+         if (noNamespace) {
+            if (level.pathNode != null) {
+               for (Handler handler : level.pathNode.handlers) {
+                  if (handler.matches(levels, attrs, level.position)) {
+                     matched.add(handler);
+                  }
+               }
+            }
+            List<Handler> list = nameHandlers.get(localName);
+            if (list != null) {
+               for (Handler handler : list) {
+                  if (handler.steps[0].matches(attrs, level.position)) {
+                     matched.add(handler);
+                  }
+               }
+            }
+         }
+
+         // build an element if an XPath selects this one or one of its ancestors
+         boolean selected = false;
+         for (Handler handler : matched) {
+            selected |= handler.buildElement;
+         }
+         if (selected || element != null) {
+            Element elm = new Element(qName, uri);
+            for (int i = 0; i < attrs.getLength(); i++) {
+               if (attrs.getQName(i).startsWith("xmlns")) {
+                  continue;
+               }
+               elm.addAttribute(new Attribute(attrs.getQName(i), attrs.getURI(i), attrs.getValue(i)));
+            }
+            if (element != null) {
+               element.appendChild(elm);
+            }
+            element = elm;
+            level.element = elm;
+         }
+
+         // results are in document order: the element, then its attributes. XOM orders the attributes of one element
+         // that a union selects by the first branch that selects each of them, not by where they are in the element
+         if (matched.size() > 1) {
+            Collections.sort(matched, BRANCH_ORDER);
+         }
+         for (Handler handler : matched) {
+            if (handler.buildElement) {
+               append(results.get(handler.index), new StructuredData.Value(elementCount, null, null, element));
+            }
+            else if (handler.attr == null) {
+               StructuredData.Value text = new StructuredData.Value(elementCount, null, null, null);
+               if (append(results.get(handler.index), text)) {
+                  if (level.texts == null) {
+                     level.texts = new ArrayList<StructuredData.Value>();
+                  }
+                  level.texts.add(text);
+                  texts.add(text);
+               }
+            }
+         }
+         for (Handler handler : matched) {
+            if (handler.attr != null) {
+               String value = attrs.getValue("", handler.attr);
+               if (value != null) {
+                  append(results.get(handler.index), new StructuredData.Value(elementCount, handler.attr, value, null));
+               }
+            }
+         }
+
+         levels.add(level);
+      }
+
+      public void endElement(String uri, String localName, String qName) {
+         Level level = levels.remove(levels.size() - 1);
+         if (level.element != null) {
+            element = (level.element.getParent() instanceof Element ? (Element)level.element.getParent() : null);
+         }
+         if (level.texts != null) {
+            for (StructuredData.Value text : level.texts) {
+               text.endText();
+            }
+            texts.removeAll(level.texts);
+         }
+      }
+
+      public void characters(char[] ch, int start, int length) {
+         if (element != null) {
+            element.appendChild(new String(ch, start, length));
+         }
+         for (StructuredData.Value text : texts) {
+            text.appendText(ch, start, length);
+         }
+      }
+   }
+
+   // a node can match more than one branch of a union, but appears in the results once
+   private static boolean append(List<StructuredData.Value> values, StructuredData.Value value) {
+      // the results from the same element are at the end
+      for (int i = values.size() - 1; i >= 0 && values.get(i).getOwner() == value.getOwner(); i--) {
+         StructuredData.Value other = values.get(i);
+         if (other.getAttr() == null ? value.getAttr() == null : other.getAttr().equals(value.getAttr())) {
+            return false;
+         }
+      }
+      values.add(value);
+      return true;
+   }
+}
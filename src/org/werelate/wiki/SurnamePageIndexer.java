@@ -6,7 +6,6 @@ import org.werelate.util.Utils;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 
 /**
  * Created by Dallan Quass
@@ -32,7 +31,7 @@ public class SurnamePageIndexer extends BasePageIndexer
    }
 
    // add surname from title
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       doc.addField(Utils.FLD_OTHER_SURNAME, title);
       doc.addField(Utils.FLD_SURNAME_TITLE, title);
    }
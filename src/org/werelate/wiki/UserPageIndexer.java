@@ -6,7 +6,6 @@ import org.apache.solr.common.SolrInputDocument;
 
 import java.sql.SQLException;
 
-import nu.xom.Document;
 
 /**
  * Created by Dallan Quass
@@ -34,7 +33,7 @@ public class UserPageIndexer extends BasePageIndexer
       return INSTRUCTIONS;
    }
 
-   protected void addCustomFields(SolrInputDocument doc, String title, Document xml, String wikiContents, String redirTitle) {
+   protected void addCustomFields(SolrInputDocument doc, String title, StructuredData xml, String wikiContents, String redirTitle) {
       doc.addField(Utils.FLD_USER, title);
    }
 }